@@ -0,0 +1,71 @@
+package com.neo4j.example.bws;
+
+import org.openjdk.jmh.annotations.*;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One writer iteration draining a full queue of visits, spread over 1,000 users and 100 sites.
+ * With resolved ids the requests found both nodes in the caches, otherwise the writer has to resolve them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BatchWriterBenchmark {
+
+    private static final int USERS = 1_000;
+    private static final int SITES = 100;
+
+    @Param({"100", "1000", "10000"})
+    public int batchSize;
+
+    @Param({"true", "false"})
+    public boolean resolved;
+
+    private GraphDatabaseService db;
+    private BatchWriterService writer;
+    private long[] userIds;
+    private long[] siteIds;
+    private final Random random = new Random(42);
+    private long minute;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        db = BenchmarkGraph.newDatabase();
+        userIds = new long[USERS];
+        for (int i = 0; i < USERS; i++) {
+            userIds[i] = BenchmarkGraph.createUser(db, "user" + i).getId();
+        }
+        siteIds = BenchmarkGraph.createSites(db, "", SITES);
+        // Not started, the benchmark drives the iterations itself.
+        writer = new BatchWriterService(0);
+        writer.SetGraphDatabase(db);
+        minute = NeoService.currentMinute();
+    }
+
+    @Setup(Level.Invocation)
+    public void fillQueue() {
+        minute += BenchmarkGraph.MINUTE;
+        for (int i = 0; i < batchSize; i++) {
+            int user = random.nextInt(USERS);
+            int site = random.nextInt(SITES);
+            writer.queue.offer("user" + user, "http://" + site + ".com",
+                    resolved ? userIds[user] : VisitCommand.NO_ID, resolved ? siteIds[site] : VisitCommand.NO_ID, minute);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Benchmark
+    public void runOneIteration() throws Exception {
+        writer.runOneIteration();
+    }
+}
@@ -0,0 +1,78 @@
+package com.neo4j.example.bws;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+/**
+ * Builds the impermanent databases the benchmarks run against.
+ */
+final class BenchmarkGraph {
+
+    static final long MINUTE = 60_000L;
+
+    private static final int NODES_PER_TRANSACTION = 10_000;
+
+    static GraphDatabaseService newDatabase() {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        new NeoService(db).initialize(db);
+        clearCaches();
+        return db;
+    }
+
+    /**
+     * Node ids are reused between databases, so the caches have to be emptied along with them.
+     */
+    static void clearCaches() {
+        NeoService.userCache.invalidateAll();
+        NeoService.siteCache.invalidateAll();
+        VisitedRelationships.cache.invalidateAll();
+        RecentVisits.invalidateAll();
+        EncodedUrls.invalidateAll();
+    }
+
+    static Node createUser(GraphDatabaseService db, String userId) {
+        try (Transaction tx = db.beginTx()) {
+            Node user = db.createNode(Labels.User);
+            user.setProperty("userId", userId);
+            tx.success();
+            return user;
+        }
+    }
+
+    /**
+     * Creates count sites named http://{prefix}{i}.com and returns their node ids.
+     */
+    static long[] createSites(GraphDatabaseService db, String prefix, int count) {
+        long[] ids = new long[count];
+        for (int from = 0; from < count; from += NODES_PER_TRANSACTION) {
+            try (Transaction tx = db.beginTx()) {
+                for (int i = from; i < Math.min(count, from + NODES_PER_TRANSACTION); i++) {
+                    Node site = db.createNode(Labels.Site);
+                    site.setProperty("url", "http://" + prefix + i + ".com");
+                    ids[i] = site.getId();
+                }
+                tx.success();
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Has the user visit each site once, at the matching minute.
+     */
+    static void visitAll(GraphDatabaseService db, Node user, long[] siteIds, long[] minutes) {
+        for (int from = 0; from < siteIds.length; from += NODES_PER_TRANSACTION) {
+            try (Transaction tx = db.beginTx()) {
+                for (int i = from; i < Math.min(siteIds.length, from + NODES_PER_TRANSACTION); i++) {
+                    NeoService.CreateVisitedRelationship(user, db.getNodeById(siteIds[i]), minutes[i]);
+                }
+                tx.success();
+            }
+        }
+    }
+
+    private BenchmarkGraph() {
+    }
+}
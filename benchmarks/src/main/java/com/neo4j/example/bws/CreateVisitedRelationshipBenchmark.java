@@ -0,0 +1,83 @@
+package com.neo4j.example.bws;
+
+import org.openjdk.jmh.annotations.*;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a visit to a user/site pair with a long visit history, for a user with many other VISITED relationships.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CreateVisitedRelationshipBenchmark {
+
+    @Param({"1", "1000", "100000"})
+    public int historyLength;
+
+    @Param({"1", "1000", "10000"})
+    public int userDegree;
+
+    private GraphDatabaseService db;
+    private Node user;
+    private Node site;
+    private long minute;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        db = BenchmarkGraph.newDatabase();
+        user = BenchmarkGraph.createUser(db, "user");
+        long start = NeoService.currentMinute() - historyLength * BenchmarkGraph.MINUTE;
+
+        long[] others = BenchmarkGraph.createSites(db, "other", userDegree - 1);
+        long[] minutes = new long[others.length];
+        Arrays.fill(minutes, start);
+        BenchmarkGraph.visitAll(db, user, others, minutes);
+
+        long[] history = new long[historyLength];
+        for (int i = 0; i < history.length; i++) {
+            history[i] = start + i * BenchmarkGraph.MINUTE;
+        }
+        try (Transaction tx = db.beginTx()) {
+            site = db.getNodeById(BenchmarkGraph.createSites(db, "site", 1)[0]);
+            NeoService.CreateVisitedRelationship(user, site, history);
+            tx.success();
+        }
+        minute = history[history.length - 1];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Benchmark
+    public void appendVisit() {
+        minute += BenchmarkGraph.MINUTE;
+        try (Transaction tx = db.beginTx()) {
+            NeoService.CreateVisitedRelationship(user, site, minute);
+            tx.success();
+        }
+    }
+
+    @Benchmark
+    public void repeatVisit() {
+        try (Transaction tx = db.beginTx()) {
+            NeoService.CreateVisitedRelationship(user, site, minute);
+            tx.success();
+        }
+    }
+
+    @Benchmark
+    public void appendVisitWithoutEdgeCache() {
+        VisitedRelationships.cache.invalidateAll();
+        appendVisit();
+    }
+}
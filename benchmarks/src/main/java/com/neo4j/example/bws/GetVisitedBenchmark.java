@@ -0,0 +1,69 @@
+package com.neo4j.example.bws;
+
+import org.openjdk.jmh.annotations.*;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the last day of visits for a user whose visits are spread evenly over the last two days, and writes the
+ * response out. Uncached runs drop the user's recent visits and the encoded urls before every read, so they include
+ * loading them from the graph.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GetVisitedBenchmark {
+
+    private static final long TWO_DAYS = 2 * 24 * 60 * BenchmarkGraph.MINUTE;
+
+    @Param({"10", "1000", "100000"})
+    public int edges;
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private GraphDatabaseService db;
+    private NeoService service;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        db = BenchmarkGraph.newDatabase();
+        service = new NeoService(db);
+        Node user = BenchmarkGraph.createUser(db, "user");
+        long[] sites = BenchmarkGraph.createSites(db, "site", edges);
+        long now = NeoService.currentMinute();
+        long[] minutes = new long[edges];
+        for (int i = 0; i < edges; i++) {
+            long visitedAt = now - TWO_DAYS + TWO_DAYS * i / edges;
+            minutes[i] = visitedAt - visitedAt % BenchmarkGraph.MINUTE;
+        }
+        BenchmarkGraph.visitAll(db, user, sites, minutes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Benchmark
+    public int getVisited() throws IOException {
+        if (!cached) {
+            RecentVisits.invalidateAll();
+            EncodedUrls.invalidateAll();
+        }
+        Response response = service.getVisited("user", 1, 0, 0, db);
+        out.reset();
+        ((StreamingOutput) response.getEntity()).write(out);
+        return out.size();
+    }
+}
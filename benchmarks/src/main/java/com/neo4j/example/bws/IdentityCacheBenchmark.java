@@ -0,0 +1,101 @@
+package com.neo4j.example.bws;
+
+import com.google.common.cache.CacheStats;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up userIds picked with Zipf skew from four times as many users as the cache holds, putting them on a miss the
+ * way the writers do. Setup fills the cache and prints the heap and off-heap bytes it retains per entry, every
+ * iteration prints its hit rate. sample() times picking the user alone, to take off lookUp's time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g", "-XX:+UseSerialGC"})
+public class IdentityCacheBenchmark {
+
+    @Param({"guava", "offheap"})
+    public String implementation;
+
+    @Param({"1000000"})
+    public int capacity;
+
+    @Param({"1.0"})
+    public double skew;
+
+    private IdentityCache cache;
+    private String[] userIds;
+    private ZipfDistribution users;
+    private final Random random = new Random(42);
+    private CacheStats iterationStart;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        userIds = new String[capacity * 4];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = String.valueOf(i);
+        }
+        users = new ZipfDistribution(userIds.length, skew);
+
+        long before = usedHeap();
+        cache = "offheap".equals(implementation) ? new OffHeapIdentityCache(capacity) : new GuavaIdentityCache(capacity);
+        // Keys arrive as new Strings with every request, so the cache is filled with copies it alone holds on to.
+        for (int i = 0; i < capacity; i++) {
+            cache.put(new String(userIds[i]), i);
+        }
+        long heapBytes = usedHeap() - before;
+        long offHeapBytes = cache instanceof OffHeapIdentityCache ? ((OffHeapIdentityCache) cache).offHeapBytes() : 0;
+        System.out.printf("%n%s: %d entries, %d bytes on heap (%d per entry), %d bytes off heap (%d per entry)%n",
+                implementation, cache.size(), heapBytes, heapBytes / cache.size(), offHeapBytes, offHeapBytes / cache.size());
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        iterationStart = cache.stats();
+    }
+
+    @TearDown(Level.Iteration)
+    public void endIteration() {
+        CacheStats stats = cache.stats().minus(iterationStart);
+        if (stats.requestCount() > 0) {
+            System.out.printf("%nhit rate %.4f%n", stats.hitRate());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.invalidateAll();
+    }
+
+    @Benchmark
+    public int sample() {
+        return users.sample(random);
+    }
+
+    @Benchmark
+    public long lookUp() {
+        int user = users.sample(random);
+        String userId = userIds[user];
+        long nodeId = cache.getIfPresent(userId);
+        if (nodeId == IdentityCache.NO_ID) {
+            cache.put(userId, user);
+            return user;
+        }
+        return nodeId;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
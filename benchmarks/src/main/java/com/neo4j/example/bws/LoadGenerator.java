@@ -0,0 +1,355 @@
+package com.neo4j.example.bws;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.neo4j.server.CommunityNeoServer;
+import org.neo4j.server.helpers.CommunityServerBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives userVisited, asyncUserVisited and getVisited over HTTP from many client threads, against an in-process
+ * server with the extension mounted at /v1 or an already running one, and writes the results as JSON.
+ *
+ * Users and sites are picked with Zipf skew, each operation is a read with probability load.readRatio, and with a
+ * load.rate the threads issue requests on a fixed schedule and latencies are measured from when a request was due,
+ * so a stalled server is charged for the requests that queued up behind it. A probe thread measures how long an
+ * async write takes to show up in getVisited.
+ *
+ *     java -cp target/benchmarks.jar -Dload.mode=async -Dload.rate=20000 com.neo4j.example.bws.LoadGenerator
+ *
+ * With -Dload.mode=sync -Dbws.sync.groupCommit=true the in-process server commits the sync writes in groups.
+ *
+ * Heap and GC figures are for the whole JVM, which with the in-process server includes the clients.
+ */
+public class LoadGenerator {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    static final String MODE = System.getProperty("load.mode", "async");
+    static final String TARGET = System.getProperty("load.url");
+    static final int PORT = Integer.getInteger("load.port", 7475);
+    static final int THREADS = Integer.getInteger("load.threads", 32);
+    static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSeconds", 10);
+    static final int DURATION_SECONDS = Integer.getInteger("load.durationSeconds", 60);
+    static final int USERS = Integer.getInteger("load.users", 100_000);
+    static final int SITES = Integer.getInteger("load.sites", 10_000);
+    static final double USER_SKEW = Double.parseDouble(System.getProperty("load.userSkew", "1.0"));
+    static final double SITE_SKEW = Double.parseDouble(System.getProperty("load.siteSkew", "1.2"));
+    static final double READ_RATIO = Double.parseDouble(System.getProperty("load.readRatio", "0.1"));
+    // Requests per second across all threads, 0 sends them back to back.
+    static final int RATE = Integer.getInteger("load.rate", 0);
+    static final long SEED = Long.getLong("load.seed", 42L);
+    static final int PROBE_INTERVAL_MILLIS = Integer.getInteger("load.probeIntervalMillis", 200);
+    static final String OUT = System.getProperty("load.out", "load-results");
+
+    private static final long VISIBILITY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final String base;
+    private final ZipfDistribution users = new ZipfDistribution(USERS, USER_SKEW);
+    private final ZipfDistribution sites = new ZipfDistribution(SITES, SITE_SKEW);
+    private volatile Recorder recorder = new Recorder();
+    private volatile boolean running = true;
+
+    LoadGenerator(String base) {
+        this.base = base;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (!"sync".equals(MODE) && !"async".equals(MODE)) {
+            throw new IllegalArgumentException("load.mode must be sync or async, not " + MODE);
+        }
+        CommunityNeoServer server = null;
+        String base = TARGET;
+        if (base == null) {
+            File directory = Files.createTempDirectory("bws-load").toFile();
+            server = CommunityServerBuilder.server()
+                    .onPort(PORT)
+                    .usingDatabaseDir(directory.getAbsolutePath())
+                    .withProperty("dbms.security.auth_enabled", "false")
+                    .withThirdPartyJaxRsPackage("com.neo4j.example.bws", "/v1")
+                    .build();
+            server.start();
+            base = "http://localhost:" + PORT + "/v1";
+        }
+        try {
+            Map<String, Object> results = new LoadGenerator(base).run();
+            File out = new File(OUT);
+            if (!out.isDirectory() && !out.mkdirs()) {
+                throw new IOException("Could not create " + out);
+            }
+            File file = new File(out, MODE + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+            objectMapper.writerWithDefaultPrettyPrinter().writeValue(file, results);
+            System.out.println(objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(results));
+            System.out.println("Wrote " + file);
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    Map<String, Object> run() throws Exception {
+        // Fails harmlessly if the constraints are already there.
+        request("GET", base + "/service/initialize", null);
+
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < threads.length; t++) {
+            final Random random = new Random(SEED + t);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(random);
+                }
+            }, "load-" + t);
+            threads[t].start();
+        }
+        Thread probe = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                probe();
+            }
+        }, "load-probe");
+        probe.start();
+
+        System.out.println("Warming up for " + WARMUP_SECONDS + " seconds");
+        Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_SECONDS));
+
+        Recorder measured = new Recorder();
+        Map<String, Long> gcBefore = gc();
+        resetPeakHeap();
+        recorder = measured;
+        long start = System.nanoTime();
+        System.out.println("Measuring " + MODE + " for " + DURATION_SECONDS + " seconds");
+        Thread.sleep(TimeUnit.SECONDS.toMillis(DURATION_SECONDS));
+        recorder = new Recorder();
+        long elapsed = System.nanoTime() - start;
+        Map<String, Long> gcAfter = gc();
+
+        running = false;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        probe.join();
+        return results(measured, elapsed, gcBefore, gcAfter);
+    }
+
+    private void work(Random random) {
+        long interval = RATE > 0 ? TimeUnit.SECONDS.toNanos(THREADS) / RATE : 0;
+        long due = System.nanoTime();
+        while (running) {
+            if (interval > 0) {
+                due += interval;
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                due = System.nanoTime();
+            }
+            String userId = "user" + users.sample(random);
+            Recorder current = recorder;
+            try {
+                if (random.nextDouble() < READ_RATIO) {
+                    int status = request("GET", base + "/service/" + userId + "/visited?days=1", null).status;
+                    current.reads.record(System.nanoTime() - due);
+                    // Users that haven't been written yet come back as 400 User not found.
+                    (status == 200 || status == 400 ? current.readCount : current.errors).incrementAndGet();
+                } else {
+                    String url = "http://site" + sites.sample(random) + ".com";
+                    int status = request("POST", writePath(userId), "{\"url\":\"" + url + "\"}").status;
+                    current.writes.record(System.nanoTime() - due);
+                    (status == 201 ? current.writeCount : status == 503 ? current.rejected : current.errors).incrementAndGet();
+                }
+            } catch (IOException e) {
+                current.errors.incrementAndGet();
+            }
+        }
+    }
+
+    private String writePath(String userId) {
+        return base + "/service/" + ("async".equals(MODE) ? "async/" : "") + userId + "/visited";
+    }
+
+    /**
+     * Writes a visit for a fresh user and polls getVisited until it shows up, every PROBE_INTERVAL_MILLIS.
+     */
+    private void probe() {
+        long probes = 0;
+        while (running) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(PROBE_INTERVAL_MILLIS));
+            String userId = "probe" + probes++;
+            String url = "http://probe" + probes + ".com";
+            Recorder current = recorder;
+            try {
+                if (request("POST", writePath(userId), "{\"url\":\"" + url + "\"}").status != 201) {
+                    continue;
+                }
+                long written = System.nanoTime();
+                while (true) {
+                    Response response = request("GET", base + "/service/" + userId + "/visited?days=1", null);
+                    if (response.status == 200 && response.body.contains(url)) {
+                        current.visibility.record(System.nanoTime() - written);
+                        break;
+                    }
+                    if (System.nanoTime() - written > VISIBILITY_TIMEOUT_NANOS || !running) {
+                        current.invisible.incrementAndGet();
+                        break;
+                    }
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+            } catch (IOException e) {
+                current.errors.incrementAndGet();
+            }
+        }
+    }
+
+    private Map<String, Object> results(Recorder measured, long elapsed, Map<String, Long> gcBefore, Map<String, Long> gcAfter) throws IOException {
+        double seconds = elapsed / 1e9;
+        LinkedHashMap<String, Object> config = new LinkedHashMap<>();
+        config.put("mode", MODE);
+        config.put("threads", THREADS);
+        config.put("durationSeconds", DURATION_SECONDS);
+        config.put("users", USERS);
+        config.put("sites", SITES);
+        config.put("userSkew", USER_SKEW);
+        config.put("siteSkew", SITE_SKEW);
+        config.put("readRatio", READ_RATIO);
+        config.put("rate", RATE);
+        config.put("seed", SEED);
+
+        LinkedHashMap<String, Object> throughput = new LinkedHashMap<>();
+        throughput.put("writesPerSecond", measured.writeCount.get() / seconds);
+        throughput.put("readsPerSecond", measured.readCount.get() / seconds);
+        throughput.put("writes", measured.writeCount.get());
+        throughput.put("reads", measured.readCount.get());
+        throughput.put("rejected", measured.rejected.get());
+        throughput.put("errors", measured.errors.get());
+
+        LinkedHashMap<String, Object> gc = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : gcAfter.entrySet()) {
+            gc.put(entry.getKey(), entry.getValue() - (gcBefore.containsKey(entry.getKey()) ? gcBefore.get(entry.getKey()) : 0L));
+        }
+
+        LinkedHashMap<String, Object> results = new LinkedHashMap<>();
+        results.put("config", config);
+        results.put("throughput", throughput);
+        results.put("writeLatencyMillis", measured.writes.snapshot().summary(1_000_000.0));
+        results.put("readLatencyMillis", measured.reads.snapshot().summary(1_000_000.0));
+        Map<String, Object> visibility = measured.visibility.snapshot().summary(1_000_000.0);
+        visibility.put("timedOut", measured.invisible.get());
+        results.put("visibilityMillis", visibility);
+        results.put("gc", gc);
+        results.put("heap", heap());
+        Response metrics = request("GET", base + "/service/metrics", null);
+        if (metrics.status == 200) {
+            results.put("serverMetrics", objectMapper.readValue(metrics.body, LinkedHashMap.class));
+        }
+        return results;
+    }
+
+    /**
+     * Collection counts and times by collector, as counts and milliseconds since the JVM started.
+     */
+    private static Map<String, Long> gc() {
+        LinkedHashMap<String, Long> gc = new LinkedHashMap<>();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gc.put(collector.getName() + ".count", collector.getCollectionCount());
+            gc.put(collector.getName() + ".millis", collector.getCollectionTime());
+        }
+        return gc;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static Map<String, Object> heap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        LinkedHashMap<String, Object> heap = new LinkedHashMap<>();
+        heap.put("usedBytes", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        heap.put("peakBytes", peak);
+        heap.put("maxBytes", Runtime.getRuntime().maxMemory());
+        return heap;
+    }
+
+    /**
+     * Sends the request and reads the whole response, so the connection goes back to the keep-alive pool.
+     */
+    private static Response request(String method, String url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        if (in != null) {
+            try (InputStream stream = in) {
+                byte[] buffer = new byte[8_192];
+                int read;
+                while ((read = stream.read(buffer)) != -1) {
+                    content.write(buffer, 0, read);
+                }
+            }
+        }
+        return new Response(status, content.toString("UTF-8"));
+    }
+
+    private static final class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * What happened during one phase, the workers switch to a new one when the measurement starts and ends.
+     */
+    private static final class Recorder {
+        final Histogram writes = new Histogram();
+        final Histogram reads = new Histogram();
+        final Histogram visibility = new Histogram();
+        final AtomicLong writeCount = new AtomicLong();
+        final AtomicLong readCount = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong invisible = new AtomicLong();
+    }
+}
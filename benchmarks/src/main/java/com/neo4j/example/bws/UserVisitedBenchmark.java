@@ -0,0 +1,49 @@
+package com.neo4j.example.bws;
+
+import org.openjdk.jmh.annotations.*;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The synchronous write endpoint, with the user and site ids either cached or looked up in the index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UserVisitedBenchmark {
+
+    private static final String BODY = "{\"url\": \"http://www.neo4j.org\"}";
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private GraphDatabaseService db;
+    private NeoService service;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        db = BenchmarkGraph.newDatabase();
+        service = new NeoService(db);
+        service.userVisited(BODY, "user", db);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Benchmark
+    public Response userVisited() throws IOException, InterruptedException {
+        if (!cached) {
+            NeoService.userCache.invalidate("user");
+            NeoService.siteCache.invalidate("http://www.neo4j.org");
+        }
+        return service.userVisited(BODY, "user", db);
+    }
+}
@@ -0,0 +1,30 @@
+package com.neo4j.example.bws;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Samples ranks 0 to n - 1 with probability proportional to 1 / (rank + 1)^skew, so rank 0 is the most popular.
+ * A skew of 0 is uniform. The cumulative distribution is computed up front, sampling is a binary search.
+ */
+final class ZipfDistribution {
+
+    private final double[] cumulative;
+
+    ZipfDistribution(int n, double skew) {
+        cumulative = new double[n];
+        double sum = 0;
+        for (int rank = 0; rank < n; rank++) {
+            sum += 1.0 / Math.pow(rank + 1, skew);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < n; rank++) {
+            cumulative[rank] /= sum;
+        }
+    }
+
+    int sample(Random random) {
+        int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(rank >= 0 ? rank : -rank - 1, cumulative.length - 1);
+    }
+}
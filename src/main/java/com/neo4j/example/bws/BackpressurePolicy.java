@@ -0,0 +1,13 @@
+package com.neo4j.example.bws;
+
+/**
+ * What a producer does when the batch writer queue is full.
+ */
+public enum BackpressurePolicy {
+    // Wait until the writer has drained enough of the queue to make room.
+    BLOCK,
+    // Refuse the write so the caller can answer with 503 Service Unavailable.
+    REJECT,
+    // Accept the request but discard the write, counting it as dropped.
+    DROP
+}
@@ -0,0 +1,148 @@
+package com.neo4j.example.bws;
+
+import org.neo4j.graphdb.Node;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * One type of write that goes through the batch writers, such as a User that VISITED a Site.
+ *
+ * A write goes from the node with a from key to the node with a to key, at a time. The writers resolve both nodes
+ * for the whole batch at once through their NodeKeys, creating the ones that don't exist yet, merge the writes of a
+ * type between the same two nodes if it coalesces, and call apply inside the batch's transaction. Writes are routed
+ * to a writer by their from key, so a from node is only ever written by one writer and its writes are applied in the
+ * order they were queued. To nodes are locked in ascending id order, from nodes can still deadlock with another type
+ * using them as to nodes, which is retried like any other deadlock.
+ *
+ * Handlers are registered with BatchWriteHandlers, either from code or as a java.util.ServiceLoader service, and
+ * writes are queued with /service/async/{fromKey}/{type}. Every type gets the same batching, commit sizing, dead
+ * letters and metrics. Only replayable types are journaled, see replayable.
+ */
+public abstract class BatchWriteHandler {
+
+    private final String type;
+    private final NodeKey from;
+    private final NodeKey to;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // Writes committed in each of the last minute's seconds, and which second each slot is counting.
+    private final AtomicLongArray committedPerSecond = new AtomicLongArray(60);
+    private final AtomicLongArray seconds = new AtomicLongArray(60);
+
+    protected BatchWriteHandler(String type, NodeKey from, NodeKey to) {
+        this.type = type;
+        this.from = from;
+        this.to = to;
+    }
+
+    public final String type() {
+        return type;
+    }
+
+    public final NodeKey from() {
+        return from;
+    }
+
+    public final NodeKey to() {
+        return to;
+    }
+
+    /**
+     * Whether writes between the same two nodes in a batch are merged into one, with every distinct time of theirs.
+     */
+    public boolean coalesces() {
+        return true;
+    }
+
+    /**
+     * Whether applying the same write again is harmless, as it is for visits, which are stored as a set of minutes.
+     * The journal replays every write queued after its last checkpoint on start up, some of which may have been
+     * committed already, so only writes of replayable types are journaled, see VisitJournal. Writes of other types,
+     * such as counters or relationships created per write, are lost if Neo4j stops before they are committed.
+     */
+    public boolean replayable() {
+        return false;
+    }
+
+    /**
+     * The time a write is stored at, from the epoch milliseconds it happened at. Minutes by default.
+     */
+    public long timeOf(long millis) {
+        return millis - millis % 60_000L;
+    }
+
+    /**
+     * Applies a write inside the writer's transaction. Throwing fails the transaction, after which the writer retries
+     * or splits it up until the write that throws is on its own, see BatchWriterService.isolate. A handler that is
+     * replayable must apply a write that is already in the graph without changing anything.
+     * @param times the distinct times of the merged writes, ascending.
+     */
+    public abstract void apply(Node from, Node to, long[] times);
+
+    /**
+     * Called on the writer thread for every write once it has committed and the request waiting on it is released.
+     */
+    public void committed(String fromKey, String toKey, long fromNodeId, long toNodeId, long[] times) {
+    }
+
+    /**
+     * Like committed, but before the request waiting on the write is released, for what reads must see by then.
+     */
+    void visible(String fromKey, String toKey, long fromNodeId, long toNodeId, long[] times) {
+    }
+
+    void recordQueued() {
+        queued.incrementAndGet();
+    }
+
+    void recordCommitted(long nowMillis) {
+        committed.incrementAndGet();
+        long second = nowMillis / 1_000;
+        int slot = (int) (second % seconds.length());
+        if (seconds.get(slot) != second) {
+            synchronized (seconds) {
+                if (seconds.get(slot) != second) {
+                    committedPerSecond.set(slot, 0);
+                    seconds.set(slot, second);
+                }
+            }
+        }
+        committedPerSecond.incrementAndGet(slot);
+    }
+
+    void recordFailed() {
+        failed.incrementAndGet();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    Map<String, Object> stats(long nowMillis) {
+        // The rate is over the 59 seconds before this one, the second in progress would only drag it down.
+        long second = nowMillis / 1_000;
+        long lastMinute = 0;
+        for (int slot = 0; slot < seconds.length(); slot++) {
+            long at = seconds.get(slot);
+            if (at < second && at > second - seconds.length()) {
+                lastMinute += committedPerSecond.get(slot);
+            }
+        }
+        LinkedHashMap<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queued", queued.get());
+        stats.put("committed", committed.get());
+        stats.put("failed", failed.get());
+        stats.put("committedPerSecond", lastMinute / (double) (seconds.length() - 1));
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return type;
+    }
+}
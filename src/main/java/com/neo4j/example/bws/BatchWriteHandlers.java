@@ -0,0 +1,62 @@
+package com.neo4j.example.bws;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * The BatchWriteHandlers by type. VISITED is always there, other types are registered by calling register, or by
+ * listing their classes in a META-INF/services/com.neo4j.example.bws.BatchWriteHandler file on the classpath, which
+ * are loaded the first time a handler is looked up.
+ */
+public final class BatchWriteHandlers {
+
+    private static final Logger logger = Logger.getLogger(BatchWriteHandlers.class.getName());
+
+    static final BatchWriteHandler VISITED = new VisitedHandler();
+
+    private static final ConcurrentHashMap<String, BatchWriteHandler> handlers = new ConcurrentHashMap<>();
+
+    static {
+        handlers.put(VISITED.type(), VISITED);
+        for (BatchWriteHandler handler : ServiceLoader.load(BatchWriteHandler.class, BatchWriteHandler.class.getClassLoader())) {
+            register(handler);
+        }
+    }
+
+    private BatchWriteHandlers() {
+    }
+
+    /**
+     * Adds a type of write, which can't replace one that is already registered.
+     */
+    public static void register(BatchWriteHandler handler) {
+        if (handlers.putIfAbsent(handler.type(), handler) != null) {
+            throw new IllegalArgumentException("A handler for " + handler.type() + " writes is already registered");
+        }
+        logger.info("Registered the " + handler.type() + " write handler, from " + handler.from() + " to " + handler.to());
+    }
+
+    /**
+     * @return the handler for the type, or null if there is none.
+     */
+    public static BatchWriteHandler forType(String type) {
+        return handlers.get(type);
+    }
+
+    static Collection<BatchWriteHandler> all() {
+        return handlers.values();
+    }
+
+    static Map<String, Object> stats() {
+        long now = System.currentTimeMillis();
+        LinkedHashMap<String, Object> stats = new LinkedHashMap<>();
+        for (BatchWriteHandler handler : handlers.values()) {
+            stats.put(handler.type(), handler.stats(now));
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,45 @@
+package com.neo4j.example.bws;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings for the batch writer, read from system properties.
+ *
+ * These live outside of BatchWriterService on purpose: the service starts itself while its class is being
+ * initialized, so anything the scheduler thread reads during start up must not be a static of BatchWriterService.
+ */
+final class BatchWriterConfig {
+
+    // The queue is bounded, what happens to producers when it fills up is decided by the backpressure policy.
+    static final int QUEUE_CAPACITY = Integer.getInteger("bws.queue.capacity", 65_536);
+    static final BackpressurePolicy BACKPRESSURE =
+            BackpressurePolicy.valueOf(System.getProperty("bws.queue.backpressure", BackpressurePolicy.BLOCK.name()));
+
+    // With group commit the synchronous /{userId}/visited hands its visit to the writers and waits up to maxWaitMillis
+    // for the transaction holding it to commit, so concurrent requests share commits, see NeoService.userVisited.
+    static final boolean SYNC_GROUP_COMMIT = Boolean.getBoolean("bws.sync.groupCommit");
+    static final long SYNC_MAX_WAIT_MILLIS = Long.getLong("bws.sync.maxWaitMillis", 1_000L);
+
+    // In adaptive mode the writer flushes as soon as a commit worth of writes is queued or the oldest queued write
+    // has waited maxLatency, and sizes its commits from how long they have been taking. Group commit always runs
+    // adaptive, a request shouldn't wait for the fixed schedule's next flush.
+    static final boolean ADAPTIVE = "adaptive".equalsIgnoreCase(System.getProperty("bws.scheduler", "fixed")) || SYNC_GROUP_COMMIT;
+    static final long MAX_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("bws.batch.maxLatencyMillis", 5L));
+    static final long TARGET_COMMIT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("bws.batch.targetCommitMillis", 50L));
+    static final int MIN_COMMIT_SIZE = Integer.getInteger("bws.batch.minCommitSize", 100);
+    static final int MAX_COMMIT_SIZE = Integer.getInteger("bws.batch.maxCommitSize", 10_000);
+
+    // A transaction that deadlocks is tried again up to retry.attempts times, with a pause that doubles from
+    // retry.backoffMillis up to retry.maxBackoffMillis. Other failures split the transaction, see BatchWriterService.
+    static final int RETRY_ATTEMPTS = Integer.getInteger("bws.retry.attempts", 5);
+    static final long RETRY_BACKOFF_MILLIS = Long.getLong("bws.retry.backoffMillis", 10L);
+    static final long RETRY_MAX_BACKOFF_MILLIS = Long.getLong("bws.retry.maxBackoffMillis", 1_000L);
+
+    // Visits are journaled to disk before they are acknowledged when a journal directory is set, see VisitJournal.
+    static final String JOURNAL_DIR = System.getProperty("bws.journal.dir");
+    static final int JOURNAL_SEGMENT_SIZE = Integer.getInteger("bws.journal.segmentMegabytes", 64) * 1024 * 1024;
+    static final boolean JOURNAL_FSYNC = Boolean.parseBoolean(System.getProperty("bws.journal.fsync", "true"));
+
+    private BatchWriterConfig() {
+    }
+}
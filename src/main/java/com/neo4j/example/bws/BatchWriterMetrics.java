@@ -0,0 +1,156 @@
+package com.neo4j.example.bws;
+
+import com.google.common.cache.CacheStats;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Instrumentation for the batch writers, served as JSON by /service/metrics and over JMX. Times are in nanoseconds.
+ */
+public class BatchWriterMetrics implements BatchWriterMetricsMBean {
+
+    private static final Logger logger = Logger.getLogger(BatchWriterMetrics.class.getName());
+    private static final double MICROS = 1_000.0;
+    private static final double MILLIS = 1_000_000.0;
+
+    public static final BatchWriterMetrics INSTANCE = new BatchWriterMetrics();
+
+    // How long enqueue took, including waiting for room in the queue and for the journal.
+    final Histogram enqueueWait = new Histogram();
+    // From the request queueing a visit to the transaction holding it being committed.
+    final Histogram enqueueToCommit = new Histogram();
+    final Histogram commitLatency = new Histogram();
+    // Writes in each drain of the queue, after coalescing.
+    final Histogram batchSize = new Histogram();
+    // Synchronous group commit requests answered before their visit had committed, see NeoService.userVisited.
+    final AtomicLong groupCommitTimeouts = new AtomicLong();
+
+    private BatchWriterMetrics() {
+    }
+
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("com.neo4j.example.bws:type=BatchWriterMetrics"));
+        } catch (JMException e) {
+            logger.warning("Could not register the batch writer metrics with JMX: " + e);
+        }
+    }
+
+    public Map<String, Object> toMap() {
+        BatchWriterPool pool = BatchWriterPool.INSTANCE;
+        LinkedHashMap<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("queueDepth", pool.getQueueSize());
+        metrics.put("coalescedWrites", pool.getCoalescedWrites());
+        metrics.put("droppedWrites", pool.getDroppedWrites());
+        metrics.put("failedWrites", getFailedWrites());
+        metrics.put("writes", BatchWriteHandlers.stats());
+        metrics.put("retriedTransactions", pool.getRetriedTransactions());
+        metrics.put("splitTransactions", pool.getSplitTransactions());
+        metrics.put("deadLetters", DeadLetterQueue.INSTANCE.status());
+        metrics.put("groupCommitTimeouts", groupCommitTimeouts.get());
+        metrics.put("enqueueWaitMicros", enqueueWait.snapshot().summary(MICROS));
+        metrics.put("enqueueToCommitMillis", enqueueToCommit.snapshot().summary(MILLIS));
+        metrics.put("commitLatencyMillis", commitLatency.snapshot().summary(MILLIS));
+        metrics.put("batchSize", batchSize.snapshot().summary(1));
+        metrics.put("userCache", cacheStats(NeoService.userCache.stats(), NeoService.userCache.size()));
+        metrics.put("siteCache", cacheStats(NeoService.siteCache.stats(), NeoService.siteCache.size()));
+        metrics.put("visitedCache", cacheStats(VisitedRelationships.cache.stats(), VisitedRelationships.cache.size()));
+        metrics.put("userFilter", NeoService.userFilter.status());
+        metrics.put("siteFilter", NeoService.siteFilter.status());
+        RetentionService retention = RetentionService.current();
+        if (retention != null) {
+            metrics.put("retention", retention.status());
+        }
+        return metrics;
+    }
+
+    private static Map<String, Object> cacheStats(CacheStats stats, long size) {
+        LinkedHashMap<String, Object> cache = new LinkedHashMap<>();
+        cache.put("size", size);
+        cache.put("hits", stats.hitCount());
+        cache.put("misses", stats.missCount());
+        cache.put("hitRate", stats.hitRate());
+        cache.put("evictions", stats.evictionCount());
+        return cache;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return BatchWriterPool.INSTANCE.getQueueSize();
+    }
+
+    @Override
+    public long getCoalescedWrites() {
+        return BatchWriterPool.INSTANCE.getCoalescedWrites();
+    }
+
+    @Override
+    public long getDroppedWrites() {
+        return BatchWriterPool.INSTANCE.getDroppedWrites();
+    }
+
+    @Override
+    public long getFailedWrites() {
+        long total = 0;
+        for (BatchWriteHandler handler : BatchWriteHandlers.all()) {
+            total += handler.getFailed();
+        }
+        return total;
+    }
+
+    @Override
+    public long getCommits() {
+        return commitLatency.snapshot().getCount();
+    }
+
+    @Override
+    public double getCommitLatencyP50Millis() {
+        return commitLatency.snapshot().getValueAtPercentile(50) / MILLIS;
+    }
+
+    @Override
+    public double getCommitLatencyP99Millis() {
+        return commitLatency.snapshot().getValueAtPercentile(99) / MILLIS;
+    }
+
+    @Override
+    public double getBatchSizeP50() {
+        return batchSize.snapshot().getValueAtPercentile(50);
+    }
+
+    @Override
+    public double getEnqueueWaitP99Micros() {
+        return enqueueWait.snapshot().getValueAtPercentile(99) / MICROS;
+    }
+
+    @Override
+    public double getEnqueueToCommitP99Millis() {
+        return enqueueToCommit.snapshot().getValueAtPercentile(99) / MILLIS;
+    }
+
+    @Override
+    public double getUserCacheHitRate() {
+        return NeoService.userCache.stats().hitRate();
+    }
+
+    @Override
+    public long getUserCacheEvictions() {
+        return NeoService.userCache.stats().evictionCount();
+    }
+
+    @Override
+    public double getSiteCacheHitRate() {
+        return NeoService.siteCache.stats().hitRate();
+    }
+
+    @Override
+    public long getSiteCacheEvictions() {
+        return NeoService.siteCache.stats().evictionCount();
+    }
+}
@@ -0,0 +1,35 @@
+package com.neo4j.example.bws;
+
+/**
+ * The batch writer metrics exposed over JMX as com.neo4j.example.bws:type=BatchWriterMetrics.
+ */
+public interface BatchWriterMetricsMBean {
+
+    int getQueueDepth();
+
+    long getCoalescedWrites();
+
+    long getDroppedWrites();
+
+    long getFailedWrites();
+
+    long getCommits();
+
+    double getCommitLatencyP50Millis();
+
+    double getCommitLatencyP99Millis();
+
+    double getBatchSizeP50();
+
+    double getEnqueueWaitP99Micros();
+
+    double getEnqueueToCommitP99Millis();
+
+    double getUserCacheHitRate();
+
+    long getUserCacheEvictions();
+
+    double getSiteCacheHitRate();
+
+    long getSiteCacheEvictions();
+}
@@ -0,0 +1,153 @@
+package com.neo4j.example.bws;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import java.io.IOException;
+
+import java.util.logging.Logger;
+
+/**
+ * Runs one or more BatchWriterServices and routes each write to the writer that owns its user.
+ *
+ * Since a user always hashes to the same writer, its VISITED relationships are only ever written by one thread
+ * and the writes for a user are applied in the order they were queued.
+ */
+public class BatchWriterPool {
+
+    private static final Logger logger = Logger.getLogger(BatchWriterPool.class.getName());
+
+    private final BatchWriterService[] writers;
+
+    public final static BatchWriterPool INSTANCE = new BatchWriterPool(Integer.getInteger("bws.writers", 1));
+    private BatchWriterPool(int count) {
+        writers = new BatchWriterService[Math.max(1, count)];
+        logger.info("Starting " + writers.length + " BatchWriterService(s)");
+        for (int shard = 0; shard < writers.length; shard++) {
+            writers[shard] = new BatchWriterService(shard);
+            writers[shard].startAsync();
+        }
+        for (BatchWriterService writer : writers) {
+            writer.awaitRunning();
+        }
+        logger.info("Started " + writers.length + " BatchWriterService(s)");
+        BatchWriterMetrics.INSTANCE.register();
+    }
+
+    public void SetGraphDatabase(GraphDatabaseService graphDb) {
+        for (BatchWriterService writer : writers) {
+            writer.SetGraphDatabase(graphDb);
+        }
+    }
+
+    /**
+     * Queues a visit on the writer owning the user, see BatchWriterService.enqueue.
+     */
+    public boolean enqueue(String userId, String url, long userNodeId, long siteNodeId, long visitedAt) throws InterruptedException, IOException {
+        return writerFor(userId).enqueue(userId, url, userNodeId, siteNodeId, visitedAt);
+    }
+
+    /**
+     * Queues a visit whose user and site are left for the writer to resolve along with the rest of its batch.
+     */
+    public boolean enqueue(String userId, String url, long visitedAt) throws InterruptedException, IOException {
+        return enqueue(userId, url, VisitCommand.NO_ID, VisitCommand.NO_ID, visitedAt);
+    }
+
+    /**
+     * Queues a visit without waiting for the journal, awaitDurable must be called before the caller is answered, see
+     * BatchWriterService.enqueueDeferred.
+     */
+    public boolean enqueueDeferred(String userId, String url, long visitedAt) throws InterruptedException, IOException {
+        return writerFor(userId).enqueueDeferred(userId, url, visitedAt);
+    }
+
+    /**
+     * Blocks until every visit journaled so far on any writer is on disk.
+     */
+    public void awaitDurable() throws InterruptedException {
+        for (BatchWriterService writer : writers) {
+            writer.awaitDurable();
+        }
+    }
+
+    /**
+     * Queues a visit like enqueue, completing the future once the transaction holding it has committed, see
+     * BatchWriterService.enqueue.
+     */
+    public boolean enqueue(String userId, String url, long visitedAt, SettableFuture<Void> committed) throws InterruptedException, IOException {
+        return writerFor(userId).enqueue(BatchWriteHandlers.VISITED, userId, url, VisitCommand.NO_ID, VisitCommand.NO_ID, visitedAt, committed);
+    }
+
+    /**
+     * Queues a write of the handler's type on the writer owning its from key, with both nodes left for the writer to
+     * resolve. The time is in epoch milliseconds, the handler truncates it.
+     */
+    public boolean enqueue(BatchWriteHandler handler, String fromKey, String toKey, long time) throws InterruptedException, IOException {
+        return writerFor(fromKey).enqueue(handler, fromKey, toKey, VisitCommand.NO_ID, VisitCommand.NO_ID, handler.timeOf(time));
+    }
+
+    /**
+     * Queues a write for a replay, see BatchWriterService.requeue.
+     */
+    public boolean requeue(BatchWriteHandler handler, String fromKey, String toKey, long time) throws InterruptedException, IOException {
+        return writerFor(fromKey).requeue(handler, fromKey, toKey, handler.timeOf(time));
+    }
+
+    public BatchWriterService writerFor(String userId) {
+        return writers[shardFor(userId, writers.length)];
+    }
+
+    static int shardFor(String userId, int shards) {
+        int hash = userId.hashCode();
+        // Spread the high bits down, sequential ids would otherwise land on neighbouring shards in runs.
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return (hash & Integer.MAX_VALUE) % shards;
+    }
+
+    public BatchWriterService[] getWriters() {
+        return writers.clone();
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (BatchWriterService writer : writers) {
+            size += writer.queue.size();
+        }
+        return size;
+    }
+
+    public long getCoalescedWrites() {
+        long total = 0;
+        for (BatchWriterService writer : writers) {
+            total += writer.getCoalescedWrites();
+        }
+        return total;
+    }
+
+    public long getDroppedWrites() {
+        long total = 0;
+        for (BatchWriterService writer : writers) {
+            total += writer.getDroppedWrites();
+        }
+        return total;
+    }
+
+    public long getRetriedTransactions() {
+        long total = 0;
+        for (BatchWriterService writer : writers) {
+            total += writer.getRetriedTransactions();
+        }
+        return total;
+    }
+
+    public long getSplitTransactions() {
+        long total = 0;
+        for (BatchWriterService writer : writers) {
+            total += writer.getSplitTransactions();
+        }
+        return total;
+    }
+}
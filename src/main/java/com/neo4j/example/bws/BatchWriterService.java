@@ -1,130 +1,716 @@
 package com.neo4j.example.bws;
 
 import com.google.common.util.concurrent.AbstractScheduledService;
-import org.joda.time.DateTime;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Striped;
 import org.neo4j.graphdb.*;
-import org.neo4j.graphdb.index.UniqueFactory;
+import org.neo4j.kernel.DeadlockDetectedException;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class BatchWriterService extends AbstractScheduledService {
 
     private static final Logger logger = Logger.getLogger(BatchWriterService.class.getName());
-    private GraphDatabaseService graphDb;
-    public LinkedBlockingQueue<HashMap<String, Object>> queue = new LinkedBlockingQueue<>();
+    private volatile GraphDatabaseService graphDb;
 
-    // Optionally set a limit to the size of the queue which will force requests to block until drained.
-    // public LinkedBlockingQueue<HashMap<String, Object>> queue = new LinkedBlockingQueue<>(25_000);
+    // To nodes such as Sites are shared between writers, so they are created under these locks in a short
+    // transaction of their own.
+    private static final Striped<Lock> KEY_LOCKS = Striped.lock(1_024);
+    // Writes whose nodes could not be resolved go first so they can be set aside, the rest are ordered by site.
+    private static final Comparator<VisitCommand> UNRESOLVED_FIRST_BY_SITE_NODE_ID = new Comparator<VisitCommand>() {
+        @Override
+        public int compare(VisitCommand a, VisitCommand b) {
+            int resolved = Boolean.compare(isResolved(a), isResolved(b));
+            return resolved != 0 ? resolved : Long.compare(a.siteNodeId, b.siteNodeId);
+        }
+    };
+
+    private final int shard;
+    private final VisitJournal journal;
+
+    private static final long IDLE_PARK_NANOS = 100_000_000L;
+
+    public final VisitCommandRingBuffer queue = new VisitCommandRingBuffer(BatchWriterConfig.QUEUE_CAPACITY);
+
+    // Commands owned by the writer thread, the queue is drained into these so its slots can be released right away.
+    private final VisitCommand[] batch = new VisitCommand[queue.capacity()];
+    private int[] coalesceTable = new int[16];
+
+    private volatile int commitSize = 1_000;
+    private volatile Thread writerThread;
+    private volatile boolean writerParked;
 
-    private static final String ACTION = "action";
-    private static final String DATA = "data";
+    // Number of queued writes that were merged into another write for the same user and site.
+    private final AtomicLong coalescedWrites = new AtomicLong();
+    // Number of writes discarded because the queue was full and the policy is DROP.
+    private final AtomicLong droppedWrites = new AtomicLong();
+    // Number of transactions tried again after a deadlock, and of failed transactions split in two.
+    private final AtomicLong retriedTransactions = new AtomicLong();
+    private final AtomicLong splitTransactions = new AtomicLong();
+
+    public long getCoalescedWrites() {
+        return coalescedWrites.get();
+    }
+
+    public long getDroppedWrites() {
+        return droppedWrites.get();
+    }
+
+    public long getRetriedTransactions() {
+        return retriedTransactions.get();
+    }
+
+    public long getSplitTransactions() {
+        return splitTransactions.get();
+    }
+
+    public int getCommitSize() {
+        return commitSize;
+    }
 
     public void SetGraphDatabase(GraphDatabaseService graphDb){
         this.graphDb = graphDb;
     }
 
-    public final static BatchWriterService INSTANCE = new BatchWriterService();
-    private BatchWriterService() {
-        if (!this.isRunning()){
-            logger.info("Starting BatchWriterService");
-            this.startAsync();
-            this.awaitRunning();
-            logger.info("Started BatchWriterService");
+    public int getShard() {
+        return shard;
+    }
+
+    /**
+     * Writers are created and started by BatchWriterPool, each one owns the users routed to its shard.
+     */
+    BatchWriterService(int shard) {
+        this.shard = shard;
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new VisitCommand();
+        }
+        if (BatchWriterConfig.JOURNAL_DIR == null) {
+            journal = null;
+        } else {
+            try {
+                journal = new VisitJournal(new File(BatchWriterConfig.JOURNAL_DIR, "shard-" + shard), BatchWriterConfig.JOURNAL_SEGMENT_SIZE);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not open the journal of " + serviceName(), e);
+            }
+        }
+    }
+
+    @Override
+    protected String serviceName() {
+        return "BatchWriterService-" + shard;
+    }
+
+    /**
+     * Queues a visit for the writer, applying the configured backpressure policy if the queue is full.
+     * Node ids that are not known yet should be passed as VisitCommand.NO_ID.
+     * With a journal the visit is written to it first, and with bws.journal.fsync this only returns once it is on disk.
+     * @return false if the write was rejected and the caller should be told to come back later.
+     */
+    public boolean enqueue(String userId, String url, long userNodeId, long siteNodeId, long visitedAt) throws InterruptedException, IOException {
+        return enqueue(BatchWriteHandlers.VISITED, userId, url, userNodeId, siteNodeId, visitedAt);
+    }
+
+    /**
+     * Queues a write of the handler's type from the node with the from key to the node with the to key, see enqueue.
+     */
+    public boolean enqueue(BatchWriteHandler handler, String fromKey, String toKey, long fromNodeId, long toNodeId, long time) throws InterruptedException, IOException {
+        return enqueue(handler, fromKey, toKey, fromNodeId, toNodeId, time, null);
+    }
+
+    /**
+     * Queues a write like enqueue, with a future that is completed once the transaction holding it has committed, or
+     * failed with what made the write fail once it has been moved to the dead letters. A write that would be dropped
+     * because the queue is full is rejected instead, the caller is waiting to hear that it was written.
+     */
+    public boolean enqueue(BatchWriteHandler handler, String fromKey, String toKey, long fromNodeId, long toNodeId, long time, SettableFuture<Void> committed) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        try {
+            return offerJournaled(handler, fromKey, toKey, fromNodeId, toNodeId, time, committed, true, BatchWriterConfig.BACKPRESSURE);
+        } finally {
+            BatchWriterMetrics.INSTANCE.enqueueWait.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Queues a visit like enqueue without waiting for the journal to be forced, for requests that queue many visits
+     * at once. They must call awaitDurable once everything is queued, so the journal is forced once per request
+     * rather than once per visit.
+     */
+    public boolean enqueueDeferred(String userId, String url, long visitedAt) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        try {
+            return offerJournaled(BatchWriteHandlers.VISITED, userId, url, VisitCommand.NO_ID, VisitCommand.NO_ID, visitedAt, null, false, BatchWriterConfig.BACKPRESSURE);
+        } finally {
+            BatchWriterMetrics.INSTANCE.enqueueWait.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Queues a write like enqueue, but returns false on a full queue whatever the backpressure policy.
+     */
+    public boolean requeue(BatchWriteHandler handler, String fromKey, String toKey, long time) throws InterruptedException, IOException {
+        return offerJournaled(handler, fromKey, toKey, VisitCommand.NO_ID, VisitCommand.NO_ID, time, null, true, BackpressurePolicy.REJECT);
+    }
+
+    /**
+     * Blocks until every write journaled so far is on disk, with bws.journal.fsync, see enqueueDeferred.
+     */
+    public void awaitDurable() throws InterruptedException {
+        if (journal != null && BatchWriterConfig.JOURNAL_FSYNC) {
+            journal.awaitDurable(journal.getWritten());
+        }
+    }
+
+    private boolean offerJournaled(BatchWriteHandler handler, String userId, String url, long userNodeId, long siteNodeId, long visitedAt, SettableFuture<Void> committed, boolean durable, BackpressurePolicy backpressure) throws InterruptedException, IOException {
+        long journalOffset = VisitJournal.NO_OFFSET;
+        boolean queued;
+        boolean journaled = journal != null && handler.replayable();
+        if (!journaled) {
+            queued = offerOrPut(handler, userId, url, userNodeId, siteNodeId, visitedAt, journalOffset, committed, backpressure);
+        } else {
+            while (true) {
+                // Queueing while holding the journal keeps the queue in journal order, so once the writer has
+                // committed a drain it can checkpoint the offset of the last visit in it.
+                synchronized (journal) {
+                    journalOffset = journal.reserve(handler, userId, url, visitedAt);
+                    queued = false;
+                    try {
+                        queued = queue.offer(handler, userId, url, userNodeId, siteNodeId, visitedAt, journalOffset, committed);
+                    } finally {
+                        if (queued) {
+                            journal.write();
+                        } else {
+                            journal.cancel();
+                        }
+                    }
+                }
+                if (queued || backpressure != BackpressurePolicy.BLOCK) {
+                    break;
+                }
+                // Waiting for room outside the journal's monitor, producers wait on the queue and not on each other.
+                LockSupport.parkNanos(1_000);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+
+        if (!queued) {
+            if (backpressure == BackpressurePolicy.REJECT || committed != null) {
+                return false;
+            }
+            droppedWrites.incrementAndGet();
+            return true;
+        }
+        handler.recordQueued();
+
+        // Only an idle writer is parked, so under load this is just a volatile read.
+        if (writerParked) {
+            LockSupport.unpark(writerThread);
+        }
+        if (durable && journaled && BatchWriterConfig.JOURNAL_FSYNC) {
+            journal.awaitDurable(journalOffset);
+        }
+        return true;
+    }
+
+    private boolean offerOrPut(BatchWriteHandler handler, String userId, String url, long userNodeId, long siteNodeId, long visitedAt, long journalOffset, SettableFuture<Void> committed, BackpressurePolicy backpressure) throws InterruptedException {
+        if (backpressure == BackpressurePolicy.BLOCK) {
+            queue.put(handler, userId, url, userNodeId, siteNodeId, visitedAt, journalOffset, committed);
+            return true;
+        }
+        return queue.offer(handler, userId, url, userNodeId, siteNodeId, visitedAt, journalOffset, committed);
+    }
+
+    private boolean replayPending() {
+        return journal != null && journal.isReplaying() && graphDb != null;
+    }
+
+    /**
+     * Waits until either a full commit worth of writes is queued or the first queued write has waited
+     * the configured max latency, whichever comes first.
+     */
+    private void awaitBatch() {
+        writerThread = Thread.currentThread();
+        long deadline = 0;
+        while (isRunning()) {
+            if (replayPending()) {
+                return;
+            }
+            int size = queue.size();
+            if (size >= commitSize) {
+                return;
+            }
+            if (size == 0) {
+                writerParked = true;
+                if (queue.isEmpty()) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                writerParked = false;
+                continue;
+            }
+            long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + BatchWriterConfig.MAX_LATENCY_NANOS;
+            } else if (now - deadline >= 0) {
+                return;
+            }
+            LockSupport.parkNanos(Math.min(deadline - now, 100_000));
         }
     }
 
+    /**
+     * Moves the commit size toward the number of writes that would take targetNanos to commit,
+     * based on the per write cost of the last commit.
+     */
+    static int tuneCommitSize(int current, int committed, long nanos, long targetNanos, int min, int max) {
+        // Small commits are dominated by fixed transaction overhead and would make the estimate too pessimistic.
+        if (committed < current / 2 || nanos <= 0) {
+            return current;
+        }
+        long desired = committed * targetNanos / nanos;
+        long smoothed = (current * 3L + desired) / 4;
+        return (int) Math.max(min, Math.min(max, smoothed));
+    }
+
     @Override
     protected void runOneIteration() throws Exception {
+        try {
+            if (replayPending()) {
+                replay();
+            }
+            if (BatchWriterConfig.ADAPTIVE) {
+                awaitBatch();
+            }
+
+            int drained = queue.drainTo(batch, batch.length);
+            // The queue is in journal order, writes of types that aren't journaled have no offset.
+            long journalOffset = VisitJournal.NO_OFFSET;
+            for (int w = drained - 1; w >= 0 && journalOffset == VisitJournal.NO_OFFSET; w--) {
+                journalOffset = batch[w].journalOffset;
+            }
+            write(drained);
+            // Until the replay is done, older visits than the ones just written may still be missing from the graph.
+            if (journal != null && journalOffset != VisitJournal.NO_OFFSET && !journal.isReplaying()) {
+                journal.checkpoint(journalOffset);
+            }
+        } catch (Exception e) {
+            // A failed service would stop for good and leave the producers of its shard blocked on a full queue.
+            logger.log(Level.SEVERE, "Error in " + serviceName() + ", carrying on with the next batch", e);
+        }
+    }
+
+    /**
+     * Applies the visits left in the journal after the last checkpoint, a batch at a time.
+     */
+    private void replay() throws Exception {
+        logger.info("Replaying the journal of " + serviceName() + " from offset " + journal.getCheckpoint());
+        int replayed;
+        while (isRunning() && (replayed = journal.replay(batch, batch.length)) > 0) {
+            long journalOffset = batch[replayed - 1].journalOffset;
+            write(replayed);
+            journal.checkpoint(journalOffset);
+        }
+        logger.info("Replayed the journal of " + serviceName() + " up to offset " + journal.getCheckpoint());
+    }
+
+    /**
+     * Coalesces and commits the first drained commands in batch, in transactions of commitSize, see isolate.
+     */
+    private void write(int drained) {
         long startTime = System.nanoTime();
-        long transactionTime = System.nanoTime();
-        Collection<HashMap<String, Object>> writes = new ArrayList<>();
 
-        queue.drainTo(writes);
+        int writes = coalesce(batch, drained, coalesceTable(drained));
+        coalescedWrites.addAndGet(drained - writes);
 
-        if(!writes.isEmpty()){
-            int i = 0;
-            Transaction tx = graphDb.beginTx();
-            try {
-                for( HashMap write : writes){
-                    try {
-                        i++;
-                        switch ((BatchWriterServiceAction) write.get(ACTION)) {
-                            case CREATE_USER:
-                                if (write.get(DATA) != null &&
-                                        ((HashMap)write.get(DATA)).containsKey("userId") &&
-                                        ((HashMap)write.get(DATA)).containsKey("siteNodeId") ) {
-                                    String userId = (String)((HashMap)write.get(DATA)).get("userId");
-                                    UniqueFactory.UniqueNodeFactory userFactory = NeoService.getUniqueUserFactory(graphDb);
-                                    Node userNode = userFactory.getOrCreate( "userId", userId );
-                                    Node siteNode = graphDb.getNodeById((Long)((HashMap)write.get(DATA)).get("siteNodeId"));
-                                    NeoService.CreateVisitedRelationship(userNode, siteNode);
-                                }
-                                break;
-                            case CREATE_SITE:
-                                if (write.get(DATA) != null &&
-                                        ((HashMap)write.get(DATA)).containsKey("userNodeId") &&
-                                        ((HashMap)write.get(DATA)).containsKey("url") ) {
-                                    String url = (String)((HashMap)write.get(DATA)).get("url");
-                                    UniqueFactory.UniqueNodeFactory contentFactory = NeoService.getUniqueContentFactory(graphDb);
-                                    Node siteNode = contentFactory.getOrCreate( "url", url );
-                                    Node userNode = graphDb.getNodeById((Long)((HashMap)write.get(DATA)).get("userNodeId"));
-                                    NeoService.CreateVisitedRelationship(userNode, siteNode);
-                                }
-                                break;
-                            case CREATE_BOTH:
-                                if (write.get(DATA) != null &&
-                                        ((HashMap)write.get(DATA)).containsKey("userId") &&
-                                        ((HashMap)write.get(DATA)).containsKey("url") ) {
-                                    String userId = (String)((HashMap)write.get(DATA)).get("userId");
-                                    UniqueFactory.UniqueNodeFactory userFactory = NeoService.getUniqueUserFactory(graphDb);
-                                    Node userNode = userFactory.getOrCreate( "userId", userId );
-                                    String url = (String)((HashMap)write.get(DATA)).get("url");
-                                    UniqueFactory.UniqueNodeFactory contentFactory = NeoService.getUniqueContentFactory(graphDb);
-                                    Node siteNode = contentFactory.getOrCreate( "url", url );
-                                    NeoService.CreateVisitedRelationship(userNode, siteNode);
-                                }
-                                break;
-                            case CREATE_VISITED:
-                                if (write.get(DATA) != null &&
-                                        ((HashMap)write.get(DATA)).containsKey("userNodeId") &&
-                                        ((HashMap)write.get(DATA)).containsKey("siteNodeId") ) {
-                                    Node userNode = graphDb.getNodeById((Long)((HashMap)write.get(DATA)).get("userNodeId"));
-                                    Node siteNode = graphDb.getNodeById((Long)((HashMap)write.get(DATA)).get("siteNodeId"));
-                                    NeoService.CreateVisitedRelationship(userNode, siteNode);
-                                }
-                                break;
+        try {
+            if (writes > 0) {
+                BatchWriterMetrics.INSTANCE.batchSize.record(writes);
+                resolveFromNodes(writes);
+                resolveToNodes(writes);
+                // Every writer takes its to node locks, such as Sites, in ascending id order, so writers sharing hot
+                // sites can wait on each other but never deadlock. From nodes, such as Users, belong to a single writer.
+                Arrays.sort(batch, 0, writes, UNRESOLVED_FIRST_BY_SITE_NODE_ID);
 
+                int from = 0;
+                while (from < writes && !isResolved(batch[from])) {
+                    deadLetter(batch[from], new NotFoundException("Unresolved nodes for " + batch[from]));
+                    from++;
+                }
+
+                while (from < writes) {
+                    int to = Math.min(writes, from + commitSize);
+                    long transactionTime = System.nanoTime();
+                    Exception failure = tryCommit(from, to);
+                    long elapsed = System.nanoTime() - transactionTime;
+                    if (failure == null) {
+                        recordCommit(from, to, elapsed);
+                        if (logger.isLoggable(Level.FINE)) {
+                            logger.fine(String.format("Performed a transaction of %,d writes in %d [msec]", to - from, elapsed / 1000000));
+                        }
+                        if (BatchWriterConfig.ADAPTIVE) {
+                            commitSize = tuneCommitSize(commitSize, to - from, elapsed, BatchWriterConfig.TARGET_COMMIT_NANOS, BatchWriterConfig.MIN_COMMIT_SIZE, BatchWriterConfig.MAX_COMMIT_SIZE);
                         }
-                    } catch (Exception exception) {
-                        logger.severe("Error Creating Visited Relationship: " + write);
+                    } else {
+                        isolate(from, to, failure);
                     }
+                    from = to;
+                }
 
-                    if(i % 1_000 == 0){
-                        tx.success();
-                        tx.close();
-                        DateTime currently = new DateTime();
-                        System.out.printf("Performed a transaction of 1,000 writes in  %d [msec] @ %s \n", (System.nanoTime() - transactionTime) / 1000000, currently.toDateTimeISO());
-                        transactionTime = System.nanoTime();
-                        tx = graphDb.beginTx();
-                    }
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine(String.format("Performed a set of transactions with %d writes (%d coalesced) in %d [msec]", writes, drained - writes, (System.nanoTime() - startTime) / 1000000));
                 }
+            }
+        } finally {
+            for (int w = 0; w < drained; w++) {
+                // Only writes that never got to a transaction, because the writer failed, are still waited on here.
+                batch[w].complete(new IllegalStateException(serviceName() + " failed before committing the write"));
+                batch[w].clear();
+            }
+        }
+    }
+
+    /**
+     * Applies the writes from from to to in one transaction.
+     * @return null once it has committed, or what made it fail.
+     */
+    private Exception tryCommit(int from, int to) {
+        try (Transaction tx = graphDb.beginTx()) {
+            for (int w = from; w < to; w++) {
+                VisitCommand write = batch[w];
+                write.handler.apply(graphDb.getNodeById(write.userNodeId), graphDb.getNodeById(write.siteNodeId), write.getVisits());
+            }
+            tx.success();
+        } catch (Exception exception) {
+            return exception;
+        }
+        return null;
+    }
+
+    /**
+     * Retries a deadlocked transaction with backoff, otherwise splits it in halves down to the writes that fail alone,
+     * which are moved to the DeadLetterQueue.
+     */
+    private void isolate(int from, int to, Exception failure) {
+        for (int attempt = 1; attempt <= BatchWriterConfig.RETRY_ATTEMPTS && isDeadlock(failure); attempt++) {
+            if (!backOff(attempt)) {
+                break;
+            }
+            retriedTransactions.incrementAndGet();
+            long transactionTime = System.nanoTime();
+            failure = tryCommit(from, to);
+            if (failure == null) {
+                recordCommit(from, to, System.nanoTime() - transactionTime);
+                return;
+            }
+        }
+
+        if (to - from == 1) {
+            deadLetter(batch[from], failure);
+            return;
+        }
+        splitTransactions.incrementAndGet();
+        int middle = (from + to) >>> 1;
+        commitOrIsolate(from, middle);
+        commitOrIsolate(middle, to);
+    }
+
+    private void commitOrIsolate(int from, int to) {
+        long transactionTime = System.nanoTime();
+        Exception failure = tryCommit(from, to);
+        if (failure == null) {
+            recordCommit(from, to, System.nanoTime() - transactionTime);
+        } else {
+            isolate(from, to, failure);
+        }
+    }
+
+    /**
+     * Sleeps between half and all of the attempt's backoff, so writers that deadlocked don't retry in lockstep.
+     * @return false if the writer was interrupted.
+     */
+    private static boolean backOff(int attempt) {
+        long backoff = Math.min(BatchWriterConfig.RETRY_MAX_BACKOFF_MILLIS,
+                BatchWriterConfig.RETRY_BACKOFF_MILLIS << Math.min(attempt - 1, 30));
+        try {
+            Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    static boolean isDeadlock(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DeadlockDetectedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isResolved(VisitCommand write) {
+        return write.userNodeId != VisitCommand.NO_ID && write.siteNodeId != VisitCommand.NO_ID;
+    }
+
+    private void deadLetter(VisitCommand write, Exception failure) {
+        write.handler.recordFailed();
+        DeadLetterQueue.INSTANCE.add(write, failure);
+        write.complete(failure);
+        logger.severe("Error Creating Visited Relationship: " + write + ", moved it to the dead letters: " + failure);
+    }
+
+    /**
+     * Records a committed transaction, releases the requests waiting on its writes, then calls the handlers back.
+     */
+    private void recordCommit(int from, int to, long elapsed) {
+        BatchWriterMetrics metrics = BatchWriterMetrics.INSTANCE;
+        metrics.commitLatency.record(elapsed);
+        long now = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        for (int w = from; w < to; w++) {
+            VisitCommand write = batch[w];
+            // Replayed visits were queued before the restart, there is no meaningful time for them.
+            if (write.enqueuedAt != 0) {
+                metrics.enqueueToCommit.record(now - write.enqueuedAt);
+            }
+            write.handler.recordCommitted(nowMillis);
+            try {
+                write.handler.visible(write.userId, write.url, write.userNodeId, write.siteNodeId, write.getVisits());
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Error making " + write + " visible to reads", e);
+            }
+            write.complete(null);
+        }
+        for (int w = from; w < to; w++) {
+            VisitCommand write = batch[w];
+            try {
+                write.handler.committed(write.userId, write.url, write.userNodeId, write.siteNodeId, write.getVisits());
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Error in the committed callback of " + write, e);
+            }
+        }
+    }
+
+    /**
+     * Finds or creates the from nodes, such as Users, that the batch doesn't know yet, each distinct key once, in a
+     * transaction of their own. From nodes belong to a single writer, so no other writer can be creating the same one
+     * unless another type of write uses them as to nodes, which the uniqueness constraint sorts out.
+     */
+    private void resolveFromNodes(int writes) {
+        LinkedHashMap<NodeKey, LinkedHashMap<String, Long>> unresolved = new LinkedHashMap<>();
+        for (int w = 0; w < writes; w++) {
+            VisitCommand write = batch[w];
+            if (write.userNodeId == VisitCommand.NO_ID) {
+                keysOf(unresolved, write.handler.from()).put(write.userId, VisitCommand.NO_ID);
+            }
+        }
+        for (Map.Entry<NodeKey, LinkedHashMap<String, Long>> keys : unresolved.entrySet()) {
+            resolveOrIsolate(keys.getValue(), keys.getKey());
+        }
+        for (int w = 0; w < writes; w++) {
+            VisitCommand write = batch[w];
+            if (write.userNodeId == VisitCommand.NO_ID) {
+                write.userNodeId = unresolved.get(write.handler.from()).get(write.userId);
+            }
+        }
+    }
 
-                tx.success();
+    /**
+     * Finds or creates the to nodes, such as Sites, that the batch doesn't know yet, each distinct key once, before
+     * the main transaction starts. They are created in a transaction of their own while holding the stripes for their
+     * keys, so two writers never race to create the same site and the main transaction only ever locks existing
+     * to nodes.
+     */
+    private void resolveToNodes(int writes) {
+        LinkedHashMap<NodeKey, LinkedHashMap<String, Long>> unresolved = new LinkedHashMap<>();
+        for (int w = 0; w < writes; w++) {
+            VisitCommand write = batch[w];
+            if (write.siteNodeId == VisitCommand.NO_ID) {
+                keysOf(unresolved, write.handler.to()).put(write.url, VisitCommand.NO_ID);
+            }
+        }
+        for (Map.Entry<NodeKey, LinkedHashMap<String, Long>> keys : unresolved.entrySet()) {
+            // bulkGet hands back the stripes in a fixed order, so writers locking overlapping keys can't deadlock.
+            Iterable<Lock> locks = KEY_LOCKS.bulkGet(keys.getValue().keySet());
+            for (Lock lock : locks) {
+                lock.lock();
+            }
+            try {
+                resolveOrIsolate(keys.getValue(), keys.getKey());
             } finally {
-                tx.close();
-                DateTime currently = new DateTime();
-                System.out.printf("Performed a set of transactions with %d writes in  %d [msec] @ %s \n", writes.size(), (System.nanoTime() - startTime) / 1000000, currently.toDateTimeISO());
+                for (Lock lock : locks) {
+                    lock.unlock();
+                }
             }
         }
+        for (int w = 0; w < writes; w++) {
+            VisitCommand write = batch[w];
+            if (write.siteNodeId == VisitCommand.NO_ID) {
+                write.siteNodeId = unresolved.get(write.handler.to()).get(write.url);
+            }
+        }
+    }
+
+    private static LinkedHashMap<String, Long> keysOf(Map<NodeKey, LinkedHashMap<String, Long>> unresolved, NodeKey nodeKey) {
+        LinkedHashMap<String, Long> keys = unresolved.get(nodeKey);
+        if (keys == null) {
+            keys = new LinkedHashMap<>();
+            unresolved.put(nodeKey, keys);
+        }
+        return keys;
+    }
 
+    /**
+     * Resolves the keys in one transaction, or if that fails one by one, leaving the keys that still fail as NO_ID.
+     */
+    private void resolveOrIsolate(Map<String, Long> keys, NodeKey nodeKey) {
+        if (resolve(keys, nodeKey, true)) {
+            return;
+        }
+        HashMap<String, Long> single = new HashMap<>(2);
+        for (Map.Entry<String, Long> entry : keys.entrySet()) {
+            single.clear();
+            single.put(entry.getKey(), VisitCommand.NO_ID);
+            // Drops the ids of rolled back nodes, and asks the index past the filter in case it missed the failed key.
+            entry.setValue(resolve(single, nodeKey, false) ? single.get(entry.getKey()) : VisitCommand.NO_ID);
+        }
+    }
+
+    /**
+     * Sets the node id of every key from the cache, the label index or a new node.
+     * @return false if the transaction failed, the ids are only cached once it has committed.
+     */
+    private boolean resolve(Map<String, Long> keys, NodeKey nodeKey, boolean trustFilter) {
+        IdentityCache cache = nodeKey.cache();
+        KeyFilter filter = nodeKey.filter();
+        Label label = nodeKey.label;
+        String property = nodeKey.property;
+        int created = 0;
+        try (Transaction tx = graphDb.beginTx()) {
+            for (Map.Entry<String, Long> entry : keys.entrySet()) {
+                String key = entry.getKey();
+                // The request thread no longer looks anything up, so the cache is checked here.
+                Node node = NeoService.cachedNode(graphDb, cache, key, property);
+                if (node == null) {
+                    node = NeoService.indexedNode(graphDb, filter, label, property, key, trustFilter);
+                }
+                if (node == null) {
+                    node = graphDb.createNode(label);
+                    node.setProperty(property, key);
+                    filter.put(key);
+                    created++;
+                }
+                entry.setValue(node.getId());
+            }
+            tx.success();
+        } catch (Exception exception) {
+            logger.severe("Error Creating " + label.name() + " nodes: " + keys.keySet());
+            return false;
+        }
+
+        for (Map.Entry<String, Long> entry : keys.entrySet()) {
+            cache.put(entry.getKey(), entry.getValue());
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(String.format("Resolved %d %s keys, created %d", keys.size(), label.name(), created));
+        }
+        return true;
+    }
+
+    /**
+     * Groups the first count commands by type, user and site so each VISITED relationship is only looked up and
+     * rewritten once per batch. The minute-truncated timestamps of the merged commands are collected into the first
+     * command for each pair, along with any node ids that were resolved by one of the requests. Commands of types that
+     * don't coalesce are left as they are. The merged commands are compacted to the front of the array.
+     * @param table scratch space for the open addressing, its length must be a power of two larger than count.
+     * @return the number of commands left after coalescing.
+     */
+    static int coalesce(VisitCommand[] commands, int count, int[] table) {
+        int mask = table.length - 1;
+        Arrays.fill(table, 0);
+
+        int merged = 0;
+        for (int c = 0; c < count; c++) {
+            VisitCommand command = commands[c];
+            if (!command.handler.coalesces()) {
+                moveTo(commands, c, merged++);
+                command.addVisit(command.visitedAt);
+                continue;
+            }
+            int slot = ((command.userId.hashCode() * 31 + command.url.hashCode()) * 31 + command.handler.hashCode()) & mask;
+            while (true) {
+                int entry = table[slot];
+                if (entry == 0) {
+                    // First time we see this pair, move it down to the next free position.
+                    moveTo(commands, c, merged);
+                    command.addVisit(command.visitedAt);
+                    table[slot] = ++merged;
+                    break;
+                }
+                VisitCommand existing = commands[entry - 1];
+                if (existing.handler == command.handler && existing.userId.equals(command.userId) && existing.url.equals(command.url)) {
+                    existing.addVisit(command.visitedAt);
+                    existing.takeCommitted(command);
+                    if (existing.userNodeId == VisitCommand.NO_ID) {
+                        existing.userNodeId = command.userNodeId;
+                    }
+                    if (existing.siteNodeId == VisitCommand.NO_ID) {
+                        existing.siteNodeId = command.siteNodeId;
+                    }
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        return merged;
+    }
+
+    private static void moveTo(VisitCommand[] commands, int from, int to) {
+        if (from != to) {
+            VisitCommand swap = commands[to];
+            commands[to] = commands[from];
+            commands[from] = swap;
+        }
+    }
+
+    private int[] coalesceTable(int count) {
+        int tableSize = Integer.highestOneBit(Math.max(2, count) * 2 - 1) << 1;
+        if (coalesceTable.length != tableSize) {
+            coalesceTable = new int[tableSize];
+        }
+        return coalesceTable;
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        if (journal != null) {
+            journal.close();
+        }
     }
 
     @Override
     protected Scheduler scheduler() {
+        if (BatchWriterConfig.ADAPTIVE) {
+            // Run back to back, each iteration waits for its own batch in awaitBatch().
+            return new CustomScheduler() {
+                @Override
+                protected Schedule getNextSchedule() throws Exception {
+                    return new Schedule(0, TimeUnit.NANOSECONDS);
+                }
+            };
+        }
         return Scheduler.newFixedRateSchedule(0, 1, TimeUnit.SECONDS);
     }
 
-}
\ No newline at end of file
+}
@@ -1,5 +0,0 @@
-package com.neo4j.example.bws;
-
-public enum BatchWriterServiceAction {
-    CREATE_USER, CREATE_SITE, CREATE_BOTH, CREATE_VISITED
-}
@@ -0,0 +1,123 @@
+package com.neo4j.example.bws;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The last bws.deadLetter.capacity writes the batch writers gave up on, see /service/dead-letters. They are logged
+ * when added but only kept in memory, the journal is checkpointed past them.
+ */
+final class DeadLetterQueue {
+
+    static final int CAPACITY = Integer.getInteger("bws.deadLetter.capacity", 10_000);
+
+    static final DeadLetterQueue INSTANCE = new DeadLetterQueue(CAPACITY);
+
+    // Guarded by this.
+    private final ArrayDeque<DeadLetter> letters = new ArrayDeque<>();
+    private final int capacity;
+    private long added;
+    private long discarded;
+    private long replayed;
+
+    DeadLetterQueue(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Copies the write, the command itself is reused by the writer.
+     */
+    void add(VisitCommand write, Exception cause) {
+        add(new DeadLetter(write.handler.type(), write.userId, write.url, write.getVisits(), String.valueOf(cause), System.currentTimeMillis()));
+    }
+
+    synchronized void add(DeadLetter letter) {
+        if (letters.size() == capacity) {
+            letters.removeFirst();
+            discarded++;
+        }
+        letters.addLast(letter);
+        added++;
+    }
+
+    synchronized int size() {
+        return letters.size();
+    }
+
+    /**
+     * @return the dead letters from offset, oldest first, at most limit of them if limit is positive.
+     */
+    synchronized List<Map<String, Object>> list(int offset, int limit) {
+        ArrayList<Map<String, Object>> list = new ArrayList<>();
+        Iterator<DeadLetter> iterator = letters.iterator();
+        for (int i = 0; i < offset && iterator.hasNext(); i++) {
+            iterator.next();
+        }
+        while (iterator.hasNext() && (limit <= 0 || list.size() < limit)) {
+            list.add(iterator.next().toMap());
+        }
+        return list;
+    }
+
+    /**
+     * Takes the oldest dead letter off the queue for replaying, or returns null if there are none.
+     */
+    synchronized DeadLetter poll() {
+        return letters.pollFirst();
+    }
+
+    /**
+     * Puts back a dead letter that was taken for replaying but could not be queued, ahead of the others.
+     */
+    synchronized void putBack(DeadLetter letter) {
+        letters.addFirst(letter);
+    }
+
+    synchronized void replayed(int count) {
+        replayed += count;
+    }
+
+    synchronized Map<String, Object> status() {
+        LinkedHashMap<String, Object> status = new LinkedHashMap<>();
+        status.put("size", letters.size());
+        status.put("capacity", capacity);
+        status.put("added", added);
+        status.put("discarded", discarded);
+        status.put("replayed", replayed);
+        return status;
+    }
+
+    static final class DeadLetter {
+        final String type;
+        final String userId;
+        final String url;
+        // The visits of the write, or its times for other types, ascending.
+        final long[] visits;
+        final String error;
+        final long failedAt;
+
+        DeadLetter(String type, String userId, String url, long[] visits, String error, long failedAt) {
+            this.type = type;
+            this.userId = userId;
+            this.url = url;
+            this.visits = visits;
+            this.error = error;
+            this.failedAt = failedAt;
+        }
+
+        Map<String, Object> toMap() {
+            LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+            map.put("type", type);
+            map.put("userId", userId);
+            map.put("url", url);
+            map.put("visits", visits);
+            map.put("error", error);
+            map.put("failedAt", failedAt);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.neo4j.example.bws;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Site urls by site node id, already encoded as UTF-8 JSON strings with their quotes and escapes, so getVisited can
+ * copy hot sites straight into the response without loading the url property or escaping it again.
+ *
+ * A site's url is its key and never changes, and sites are never deleted by the service, so entries don't go stale.
+ * The cache is bounded by bws.cache.urlBytes, the total size of the encoded urls.
+ */
+final class EncodedUrls {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static final Cache<Long, byte[]> cache = CacheBuilder.newBuilder()
+            .maximumWeight(Long.getLong("bws.cache.urlBytes", 64L * 1024 * 1024))
+            .weigher(new Weigher<Long, byte[]>() {
+                @Override
+                public int weigh(Long siteNodeId, byte[] encoded) {
+                    return encoded.length;
+                }
+            })
+            .build();
+
+    private EncodedUrls() {
+    }
+
+    /**
+     * @return the site's url as a JSON string. Must be called inside a transaction.
+     */
+    static byte[] get(final GraphDatabaseService db, final long siteNodeId) {
+        try {
+            return cache.get(siteNodeId, new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return encode((String) db.getNodeById(siteNodeId).getProperty("url"));
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not encode the url of site " + siteNodeId, e.getCause());
+        }
+    }
+
+    static byte[] encode(String url) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(url.length() + 2);
+        try (JsonGenerator generator = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8)) {
+            generator.writeString(url);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the encoded urls written out as a JSON array, straight to the response stream.
+     */
+    static StreamingOutput asJsonArray(final List<byte[]> urls) {
+        return new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                output.write('[');
+                for (int i = 0; i < urls.size(); i++) {
+                    if (i > 0) {
+                        output.write(',');
+                    }
+                    output.write(urls.get(i));
+                }
+                output.write(']');
+            }
+        };
+    }
+
+    static void invalidateAll() {
+        cache.invalidateAll();
+    }
+}
@@ -0,0 +1,91 @@
+package com.neo4j.example.bws;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * The original on-heap cache, exact but costs a String, a Long and a cache entry per key.
+ */
+public class GuavaIdentityCache implements IdentityCache {
+
+    private final Cache<String, Long> cache;
+
+    public GuavaIdentityCache(long maximumSize) {
+        cache = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+    }
+
+    @Override
+    public long getIfPresent(String key) {
+        Long nodeId = cache.getIfPresent(key);
+        return nodeId == null ? NO_ID : nodeId;
+    }
+
+    @Override
+    public void put(String key, long nodeId) {
+        cache.put(key, nodeId);
+    }
+
+    @Override
+    public void invalidate(String key) {
+        cache.invalidate(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public long size() {
+        return cache.size();
+    }
+
+    @Override
+    public boolean confirmsKeys() {
+        return true;
+    }
+
+    @Override
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * Keys as length prefixed UTF-8 followed by the node id, ending with a length of -1.
+     */
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        for (Map.Entry<String, Long> entry : cache.asMap().entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeLong(entry.getValue() & ~UNCONFIRMED);
+        }
+        out.writeInt(-1);
+    }
+
+    /**
+     * Node ids may have been reused since the snapshot was taken, so the entries are marked UNCONFIRMED.
+     * A length running past the end of the snapshot is rejected before anything is allocated for it.
+     */
+    @Override
+    public void readFrom(ByteBuffer in) {
+        int length;
+        while ((length = in.getInt()) >= 0) {
+            if (length > in.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            byte[] key = new byte[length];
+            in.get(key);
+            cache.put(new String(key, StandardCharsets.UTF_8), in.getLong() | UNCONFIRMED);
+        }
+    }
+}
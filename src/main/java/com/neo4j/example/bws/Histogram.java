@@ -0,0 +1,119 @@
+package com.neo4j.example.bws;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear histogram like HdrHistogram's, accurate to about 6%, recorded into counters striped by thread.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray[] stripes;
+    private final int mask;
+
+    public Histogram() {
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        stripes = new AtomicLongArray[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        mask = count - 1;
+    }
+
+    public void record(long value) {
+        // Thread ids are handed out sequentially, so neighbouring threads get neighbouring stripes.
+        stripes[(int) Thread.currentThread().getId() & mask].incrementAndGet(index(Math.max(0, value)));
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return the largest value that falls in the bucket.
+     */
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS);
+        return lowest + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return new Snapshot(counts);
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+
+        Snapshot(long[] counts) {
+            this.counts = counts;
+            long total = 0;
+            for (long bucket : counts) {
+                total += bucket;
+            }
+            count = total;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @param percentile between 0 and 100.
+         * @return the value at or below which the given percentage of the recorded values fall, 0 if there are none.
+         */
+        public long getValueAtPercentile(double percentile) {
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen > 0 && seen >= rank) {
+                    return highestValue(i);
+                }
+            }
+            return 0;
+        }
+
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return highestValue(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @param unit what the recorded values are divided by in the summary, 1_000_000 to go from nanos to millis.
+         */
+        public Map<String, Object> summary(double unit) {
+            LinkedHashMap<String, Object> summary = new LinkedHashMap<>();
+            summary.put("count", count);
+            summary.put("p50", getValueAtPercentile(50) / unit);
+            summary.put("p90", getValueAtPercentile(90) / unit);
+            summary.put("p99", getValueAtPercentile(99) / unit);
+            summary.put("p999", getValueAtPercentile(99.9) / unit);
+            summary.put("max", getMax() / unit);
+            return summary;
+        }
+    }
+}
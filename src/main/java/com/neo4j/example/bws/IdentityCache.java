@@ -0,0 +1,51 @@
+package com.neo4j.example.bws;
+
+import com.google.common.cache.CacheStats;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Caches userId and url lookups to node ids, so the hot paths can skip the label index.
+ */
+public interface IdentityCache {
+
+    long NO_ID = -1L;
+
+    /**
+     * Set on ids restored from a snapshot that haven't been checked against the graph yet, see NeoService.cachedNode.
+     */
+    long UNCONFIRMED = Long.MIN_VALUE;
+
+    /**
+     * @return the cached node id for the key, possibly with the UNCONFIRMED bit set, or NO_ID if it is not cached.
+     */
+    long getIfPresent(String key);
+
+    void put(String key, long nodeId);
+
+    void invalidate(String key);
+
+    void invalidateAll();
+
+    long size();
+
+    /**
+     * @return false if a hit may belong to a different key with the same hash, in which case the caller has to
+     * check the key against the node before using it, see NeoService.cachedNode.
+     */
+    boolean confirmsKeys();
+
+    CacheStats stats();
+
+    /**
+     * Writes the entries in this implementation's snapshot format, see IdentityCacheSnapshots.
+     */
+    void writeTo(DataOutput out) throws IOException;
+
+    /**
+     * Adds the entries of a snapshot written by the same implementation.
+     */
+    void readFrom(ByteBuffer in);
+}
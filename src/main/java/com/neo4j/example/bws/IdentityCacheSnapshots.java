@@ -0,0 +1,162 @@
+package com.neo4j.example.bws;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Saves the identity caches to -Dbws.snapshot.dir every bws.snapshot.intervalSeconds and when the JVM shuts down,
+ * and loads them back when the service starts, so a restart doesn't begin with cold caches.
+ *
+ * Each snapshot file starts with a magic number and the name of the cache implementation that wrote it, followed by
+ * the entries in that implementation's own format. A snapshot written by a different implementation is ignored.
+ * Files are written next to their final name and renamed into place, so a crash mid-write keeps the old snapshot.
+ * Saves are serialized, the scheduled one and the one on shutdown would otherwise write the same temporary file.
+ * A snapshot that is cut short or has a length running past its end is dropped as a whole.
+ */
+final class IdentityCacheSnapshots {
+
+    private static final Logger logger = Logger.getLogger(IdentityCacheSnapshots.class.getName());
+    private static final int MAGIC = 0x42575343;
+
+    static final String DIRECTORY = System.getProperty("bws.snapshot.dir");
+    static final long INTERVAL_SECONDS = Long.getLong("bws.snapshot.intervalSeconds", 300L);
+
+    private static final Object saveLock = new Object();
+
+    private static boolean started;
+    private static boolean usersRestored;
+
+    /**
+     * Loads the snapshots and schedules saving them, if a snapshot directory is configured.
+     */
+    static synchronized void start() {
+        if (DIRECTORY == null || started) {
+            return;
+        }
+        started = true;
+        final File directory = new File(DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.severe("Could not create the snapshot directory " + directory);
+            return;
+        }
+        final Map<String, IdentityCache> caches = caches();
+        for (Map.Entry<String, IdentityCache> cache : caches.entrySet()) {
+            boolean loaded = load(cache.getValue(), new File(directory, cache.getKey() + ".snapshot"));
+            if (cache.getValue() == NeoService.userCache) {
+                usersRestored = loaded;
+            }
+        }
+
+        Runnable saveAll = new Runnable() {
+            @Override
+            public void run() {
+                for (Map.Entry<String, IdentityCache> cache : caches.entrySet()) {
+                    save(cache.getValue(), new File(directory, cache.getKey() + ".snapshot"));
+                }
+            }
+        };
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("bws-snapshots").build());
+        scheduler.scheduleWithFixedDelay(saveAll, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(saveAll, "bws-snapshots-shutdown"));
+    }
+
+    /**
+     * @return whether the user cache was loaded from a snapshot, that is holds the users active before the restart.
+     */
+    static synchronized boolean usersRestored() {
+        return usersRestored;
+    }
+
+    private static Map<String, IdentityCache> caches() {
+        LinkedHashMap<String, IdentityCache> caches = new LinkedHashMap<>();
+        caches.put("users", NeoService.userCache);
+        caches.put("sites", NeoService.siteCache);
+        caches.put("visited", VisitedRelationships.cache);
+        return caches;
+    }
+
+    static boolean save(IdentityCache cache, File file) {
+        synchronized (saveLock) {
+            return write(cache, file);
+        }
+    }
+
+    private static boolean write(IdentityCache cache, File file) {
+        long start = System.nanoTime();
+        File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(cache.getClass().getName());
+            cache.writeTo(out);
+        } catch (IOException e) {
+            logger.severe("Could not write the snapshot " + file + ": " + e);
+            return false;
+        }
+        if (!temporary.renameTo(file)) {
+            logger.severe("Could not move the snapshot " + temporary + " to " + file);
+            return false;
+        }
+        logger.info("Saved " + cache.size() + " entries to " + file + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " [msec]");
+        return true;
+    }
+
+    static boolean load(IdentityCache cache, File file) {
+        if (!file.exists()) {
+            return false;
+        }
+        long start = System.nanoTime();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (in.getInt() != MAGIC) {
+                logger.warning("Ignoring " + file + ", it is not an identity cache snapshot");
+                return false;
+            }
+            String implementation = readUTF(in);
+            if (!implementation.equals(cache.getClass().getName())) {
+                logger.warning("Ignoring " + file + ", it was written by " + implementation);
+                return false;
+            }
+            cache.readFrom(in);
+        } catch (IOException | BufferUnderflowException e) {
+            logger.severe("Could not read the snapshot " + file + ": " + e);
+            cache.invalidateAll();
+            return false;
+        }
+        logger.info("Loaded " + cache.size() + " entries from " + file + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " [msec]");
+        return true;
+    }
+
+    /**
+     * Reads a string written by DataOutput.writeUTF, which is plain UTF-8 for the class names written here.
+     */
+    private static String readUTF(ByteBuffer in) {
+        int length = in.getShort() & 0xffff;
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private IdentityCacheSnapshots() {
+    }
+}
@@ -0,0 +1,19 @@
+package com.neo4j.example.bws;
+
+/**
+ * Builds the identity caches selected with -Dbws.cache, "guava" (the default) or "offheap".
+ */
+final class IdentityCaches {
+
+    static final String IMPLEMENTATION = System.getProperty("bws.cache", "guava");
+
+    static IdentityCache newIdentityCache(long maximumSize) {
+        if ("offheap".equalsIgnoreCase(IMPLEMENTATION)) {
+            return new OffHeapIdentityCache(maximumSize);
+        }
+        return new GuavaIdentityCache(maximumSize);
+    }
+
+    private IdentityCaches() {
+    }
+}
@@ -0,0 +1,285 @@
+package com.neo4j.example.bws;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.ConstraintType;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * A scalable Bloom filter of the userIds or urls in the graph, so lookups for keys never seen skip the index probe.
+ * Each full layer gets a successor twice its size at half its false positive rate, see bws.filter.fpp.
+ */
+final class KeyFilter {
+
+    private static final Logger logger = Logger.getLogger(KeyFilter.class.getName());
+    private static final double FPP = Double.parseDouble(System.getProperty("bws.filter.fpp", "0.01"));
+
+    private final String name;
+    private final long initialCapacity;
+
+    private volatile Layers layers;
+    // Keys added while a rebuild is running go into the new layers as well.
+    private volatile Layers rebuilding;
+    private volatile boolean complete;
+
+    private final AtomicLong negatives = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    KeyFilter(String name, long initialCapacity) {
+        this.name = name;
+        this.initialCapacity = Math.max(1_024, initialCapacity);
+        layers = new Layers(this.initialCapacity, FPP);
+    }
+
+    /**
+     * @return false only if the key is certainly not in the graph.
+     */
+    boolean mightContain(String key) {
+        if (!complete) {
+            return true;
+        }
+        if (layers.mightContain(OffHeapIdentityCache.hash(key))) {
+            return true;
+        }
+        negatives.incrementAndGet();
+        return false;
+    }
+
+    void put(String key) {
+        long hash = OffHeapIdentityCache.hash(key);
+        Layers current = layers;
+        current.put(hash);
+        Layers next = rebuilding;
+        if (next != null) {
+            next.put(hash);
+        }
+        // A rebuild can swap its layers in and stop taking keys between the two reads above.
+        Layers swapped = layers;
+        if (swapped != current && swapped != next) {
+            swapped.put(hash);
+        }
+    }
+
+    /**
+     * Counts an index probe that missed although mightContain let it through.
+     */
+    void falsePositive() {
+        if (complete) {
+            falsePositives.incrementAndGet();
+        }
+    }
+
+    /**
+     * Called once every existing node has been put, see WarmupJob. Until then mightContain always answers true.
+     */
+    void complete(GraphDatabaseService db, Label label, String property) {
+        if (hasUniquenessConstraint(db, label, property)) {
+            complete();
+        } else {
+            logger.warning("The " + name + " filter is not used, there is no uniqueness constraint on :" +
+                    label.name() + "(" + property + "), see /initialize");
+        }
+    }
+
+    // Only the constraint fails the create of a node the filter missed, say one created through Cypher, which is
+    // then looked up past the filter and put, see NeoService.indexedNode.
+    static boolean hasUniquenessConstraint(GraphDatabaseService db, Label label, String property) {
+        try (Transaction tx = db.beginTx()) {
+            for (ConstraintDefinition constraint : db.schema().getConstraints(label)) {
+                if (constraint.isConstraintType(ConstraintType.UNIQUENESS)) {
+                    for (String key : constraint.getPropertyKeys()) {
+                        if (key.equals(property)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            tx.success();
+        }
+        return false;
+    }
+
+    void complete() {
+        if (!complete) {
+            complete = true;
+            logger.info("The " + name + " filter is complete with " + layers.count() + " keys");
+        }
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Builds new layers from every node with the label and swaps them in, dropping the keys of deleted nodes.
+     */
+    synchronized void rebuild(GraphDatabaseService db, Label label, String property) {
+        long start = System.nanoTime();
+        Layers next = new Layers(Math.max(initialCapacity, layers.count()), FPP);
+        rebuilding = next;
+        try (Transaction tx = db.beginTx()) {
+            for (Node node : GlobalGraphOperations.at(db).getAllNodesWithLabel(label)) {
+                Object key = node.getProperty(property, null);
+                if (key instanceof String) {
+                    next.put(OffHeapIdentityCache.hash((String) key));
+                }
+            }
+            tx.success();
+            layers = next;
+            negatives.set(0);
+            falsePositives.set(0);
+            complete(db, label, property);
+        } finally {
+            rebuilding = null;
+        }
+        logger.info("Rebuilt the " + name + " filter with " + next.count() + " keys in " + (System.nanoTime() - start) / 1_000_000 + " [msec]");
+    }
+
+    Map<String, Object> status() {
+        Layers current = layers;
+        long negative = negatives.get();
+        long falsePositive = falsePositives.get();
+        LinkedHashMap<String, Object> status = new LinkedHashMap<>();
+        status.put("complete", complete);
+        status.put("keys", current.count());
+        status.put("layers", current.layers.length);
+        status.put("bytes", current.bits() / 8);
+        status.put("expectedFalsePositiveRate", current.expectedFpp());
+        status.put("negatives", negative);
+        status.put("falsePositives", falsePositive);
+        // Of the lookups for keys that turned out to be missing, the share the filter didn't catch.
+        status.put("falsePositiveRate", negative + falsePositive == 0 ? 0.0 : (double) falsePositive / (negative + falsePositive));
+        return status;
+    }
+
+    /**
+     * The layers of a scalable Bloom filter, only the last one is added to.
+     */
+    private static final class Layers {
+        private volatile Layer[] layers;
+
+        Layers(long capacity, double fpp) {
+            layers = new Layer[]{new Layer(capacity, fpp)};
+        }
+
+        boolean mightContain(long hash) {
+            for (Layer layer : layers) {
+                if (layer.mightContain(hash)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void put(long hash) {
+            Layer[] current = layers;
+            Layer last = current[current.length - 1];
+            if (last.count.get() >= last.capacity) {
+                last = grow(current);
+            }
+            last.put(hash);
+        }
+
+        private synchronized Layer grow(Layer[] seen) {
+            Layer[] current = layers;
+            Layer last = current[current.length - 1];
+            if (current == seen) {
+                last = new Layer(last.capacity * 2, last.fpp / 2);
+                Layer[] grown = Arrays.copyOf(current, current.length + 1);
+                grown[current.length] = last;
+                layers = grown;
+            }
+            return last;
+        }
+
+        long count() {
+            long count = 0;
+            for (Layer layer : layers) {
+                count += layer.count.get();
+            }
+            return count;
+        }
+
+        long bits() {
+            long bits = 0;
+            for (Layer layer : layers) {
+                bits += layer.bits;
+            }
+            return bits;
+        }
+
+        double expectedFpp() {
+            double allNegative = 1.0;
+            for (Layer layer : layers) {
+                double setBit = 1 - Math.exp(-(double) layer.hashes * layer.count.get() / layer.bits);
+                allNegative *= 1 - Math.pow(setBit, layer.hashes);
+            }
+            return 1 - allNegative;
+        }
+    }
+
+    /**
+     * A plain Bloom filter with double hashing over an AtomicLongArray, so concurrent puts never lose each other's bits.
+     */
+    private static final class Layer {
+        final long capacity;
+        final double fpp;
+        final long bits;
+        final int hashes;
+        final AtomicLongArray words;
+        final AtomicLong count = new AtomicLong();
+
+        Layer(long capacity, double fpp) {
+            this.capacity = capacity;
+            this.fpp = fpp;
+            long optimalBits = (long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            words = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE, (optimalBits + 63) / 64));
+            bits = words.length() * 64L;
+            hashes = Math.max(1, (int) Math.round((double) bits / capacity * Math.log(2)));
+        }
+
+        boolean mightContain(long hash) {
+            int first = (int) hash;
+            int second = (int) (hash >>> 32);
+            for (int i = 1; i <= hashes; i++) {
+                long bit = ((first + (long) i * second) & Long.MAX_VALUE) % bits;
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void put(long hash) {
+            int first = (int) hash;
+            int second = (int) (hash >>> 32);
+            boolean changed = false;
+            for (int i = 1; i <= hashes; i++) {
+                long bit = ((first + (long) i * second) & Long.MAX_VALUE) % bits;
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long value;
+                while (((value = words.get(word)) & mask) == 0) {
+                    if (words.compareAndSet(word, value, value | mask)) {
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+            // Keys that were already in the filter don't use up any capacity.
+            if (changed) {
+                count.incrementAndGet();
+            }
+        }
+    }
+}
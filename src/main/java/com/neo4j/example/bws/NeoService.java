@@ -1,40 +1,47 @@
 package com.neo4j.example.bws;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import org.apache.commons.lang.ArrayUtils;
+import com.google.common.util.concurrent.SettableFuture;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.joda.time.DateTime;
-import org.joda.time.DateTimeZone;
-import org.joda.time.MutableDateTime;
-import org.neo4j.graphalgo.GraphAlgoFactory;
-import org.neo4j.graphalgo.PathFinder;
 import org.neo4j.graphdb.*;
-import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.index.UniqueFactory;
 import org.neo4j.graphdb.schema.Schema;
-import org.neo4j.tooling.GlobalGraphOperations;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @javax.ws.rs.Path("/service")
 public class NeoService {
     private static final ObjectMapper objectMapper = new ObjectMapper();
-    private static final PathExpander VISITED_EXPANDER = PathExpanders.forTypeAndDirection(Relationships.VISITED, Direction.OUTGOING);
-    private static final PathFinder<Path> ONE_HOP_VISITED_PATH = GraphAlgoFactory.shortestPath(VISITED_EXPANDER, 1);
-    public static final Cache<String, Long> userCache = CacheBuilder.newBuilder().maximumSize(10_000_000).build();
-    public static final Cache<String, Long> siteCache = CacheBuilder.newBuilder().maximumSize(100_000).build();
-    private static final BatchWriterService batchWriterService = BatchWriterService.INSTANCE;
-
-    private static final String ACTION = "action";
-    private static final String DATA = "data";
+    private static final JsonFactory jsonFactory = objectMapper.getJsonFactory();
+    public static final IdentityCache userCache = IdentityCaches.newIdentityCache(Long.getLong("bws.cache.users", 10_000_000L));
+    public static final IdentityCache siteCache = IdentityCaches.newIdentityCache(Long.getLong("bws.cache.sites", 100_000L));
+    public static final KeyFilter userFilter = new KeyFilter("user", Long.getLong("bws.filter.users", 1_000_000L));
+    public static final KeyFilter siteFilter = new KeyFilter("site", Long.getLong("bws.filter.sites", 100_000L));
+    private static final BatchWriterPool batchWriterPool = BatchWriterPool.INSTANCE;
+    // Clients may be a little ahead of the server's clock, a ts further in the future or before the epoch is rejected.
+    static final long MAX_CLOCK_SKEW_MILLIS = Long.getLong("bws.ts.maxSkewMillis", 5 * 60_000L);
+
+    static {
+        IdentityCacheSnapshots.start();
+    }
 
     public NeoService(@Context GraphDatabaseService graphdb){
-        batchWriterService.SetGraphDatabase(graphdb);
+        batchWriterPool.SetGraphDatabase(graphdb);
+        RetentionService.start(graphdb);
     }
 
     @GET
@@ -46,27 +53,161 @@ public class NeoService {
         return Response.ok().entity(objectMapper.writeValueAsString(results)).build();
     }
 
+    @GET
+    @javax.ws.rs.Path("/metrics")
+    public Response metrics() throws IOException {
+        return Response.ok().entity(objectMapper.writeValueAsString(BatchWriterMetrics.INSTANCE.toMap())).build();
+    }
+
+    /**
+     * The sites with the most visits in the last minutes, from the writers' summaries rather than the graph.
+     */
+    @GET
+    @javax.ws.rs.Path("/top/sites")
+    public Response topSites(@QueryParam("minutes") @DefaultValue("10") int minutes,
+                             @QueryParam("n") @DefaultValue("10") int n) throws IOException {
+        if (minutes < 1 || minutes > VisitSummaries.INSTANCE.getMinutes()) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(objectMapper.writeValueAsString("minutes must be between 1 and " + VisitSummaries.INSTANCE.getMinutes())).build();
+        }
+        return Response.ok().entity(objectMapper.writeValueAsString(VisitSummaries.INSTANCE.topSites(minutes, n, currentMinute()))).build();
+    }
+
+    /**
+     * The estimated number of users with a visit in the last minutes.
+     */
+    @GET
+    @javax.ws.rs.Path("/active-users")
+    public Response activeUsers(@QueryParam("minutes") @DefaultValue("10") int minutes) throws IOException {
+        if (minutes < 1 || minutes > VisitSummaries.INSTANCE.getMinutes()) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(objectMapper.writeValueAsString("minutes must be between 1 and " + VisitSummaries.INSTANCE.getMinutes())).build();
+        }
+        LinkedHashMap<String, Object> results = new LinkedHashMap<>();
+        results.put("minutes", minutes);
+        results.put("activeUsers", VisitSummaries.INSTANCE.activeUsers(minutes, currentMinute()));
+        return Response.ok().entity(objectMapper.writeValueAsString(results)).build();
+    }
+
+    /**
+     * Runs a warmup and waits for it to finish, see /warmup/start for doing it in the background.
+     */
     @GET
     @javax.ws.rs.Path("/warmup")
     public String warmUp(@Context GraphDatabaseService db) {
-        try ( Transaction tx = db.beginTx() )
-        {
-            for (Node siteNode : GlobalGraphOperations.at(db).getAllNodesWithLabel(Labels.Site)){
-                siteNode.getPropertyKeys();
-                siteCache.put((String) siteNode.getProperty("url"), siteNode.getId());
-            }
+        WarmupJob job = WarmupJob.start(db);
+        try {
+            job.await(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Warm up interrupted";
+        }
+        switch (job.getState()) {
+            case DONE:
+                return "Warmed up and ready to go!";
+            case FAILED:
+                return "Warm up failed for " + job.status().get("chunksFailed") + " chunks, call it again to retry them";
+            default:
+                return "Warm up " + job.getState().name().toLowerCase();
+        }
+    }
 
-            for (Node userNode : GlobalGraphOperations.at(db).getAllNodesWithLabel(Labels.User)){
-                userNode.getPropertyKeys();
-                userCache.put((String) userNode.getProperty("userId"), userNode.getId());
-            }
+    @GET
+    @javax.ws.rs.Path("/warmup/start")
+    public Response startWarmUp(@Context GraphDatabaseService db) throws IOException {
+        return Response.ok().entity(objectMapper.writeValueAsString(WarmupJob.start(db).status())).build();
+    }
+
+    @GET
+    @javax.ws.rs.Path("/warmup/status")
+    public Response warmUpStatus() throws IOException {
+        WarmupJob job = WarmupJob.current();
+        if (job == null) {
+            return Response.status(Response.Status.NOT_FOUND).entity(objectMapper.writeValueAsString("No warm up has been started")).build();
+        }
+        return Response.ok().entity(objectMapper.writeValueAsString(job.status())).build();
+    }
+
+    @GET
+    @javax.ws.rs.Path("/warmup/cancel")
+    public Response cancelWarmUp() throws IOException {
+        WarmupJob job = WarmupJob.current();
+        if (job == null) {
+            return Response.status(Response.Status.NOT_FOUND).entity(objectMapper.writeValueAsString("No warm up has been started")).build();
+        }
+        job.cancel();
+        return Response.ok().entity(objectMapper.writeValueAsString(job.status())).build();
+    }
+
+    /**
+     * The writes the batch writers gave up on, oldest first, see DeadLetterQueue.
+     */
+    @GET
+    @javax.ws.rs.Path("/dead-letters")
+    public Response deadLetters(@QueryParam("offset") @DefaultValue("0") int offset,
+                                @QueryParam("limit") @DefaultValue("100") int limit) throws IOException {
+        LinkedHashMap<String, Object> results = new LinkedHashMap<>();
+        results.put("status", DeadLetterQueue.INSTANCE.status());
+        results.put("deadLetters", DeadLetterQueue.INSTANCE.list(offset, limit));
+        return Response.ok().entity(objectMapper.writeValueAsString(results)).build();
+    }
 
-            for ( Relationship relationship : GlobalGraphOperations.at(db).getAllRelationships()){
-                relationship.getPropertyKeys();
-                relationship.getNodes();
+    /**
+     * Queues the dead letters again, oldest first, until the queues are full. Letters of unknown types are kept.
+     */
+    @GET
+    @javax.ws.rs.Path("/dead-letters/replay")
+    public Response replayDeadLetters() throws IOException, InterruptedException {
+        DeadLetterQueue deadLetters = DeadLetterQueue.INSTANCE;
+        int replayed = 0;
+        boolean full = false;
+        ArrayList<DeadLetterQueue.DeadLetter> skipped = new ArrayList<>();
+        LinkedHashSet<String> errors = new LinkedHashSet<>();
+        DeadLetterQueue.DeadLetter letter;
+        while (!full && (letter = deadLetters.poll()) != null) {
+            BatchWriteHandler handler = BatchWriteHandlers.forType(letter.type);
+            if (handler == null) {
+                skipped.add(letter);
+                errors.add("Unknown write type " + letter.type);
+                continue;
+            }
+            int queued = 0;
+            while (queued < letter.visits.length && batchWriterPool.requeue(handler, letter.userId, letter.url, letter.visits[queued])) {
+                queued++;
             }
+            if (queued < letter.visits.length) {
+                // Only the visits that didn't make it into the queue are put back.
+                deadLetters.putBack(new DeadLetterQueue.DeadLetter(letter.type, letter.userId, letter.url,
+                        Arrays.copyOfRange(letter.visits, queued, letter.visits.length), letter.error, letter.failedAt));
+                full = true;
+            } else {
+                replayed++;
+            }
+        }
+        deadLetters.replayed(replayed);
+        // Back behind the ones that weren't replayed, they would otherwise be polled again straight away.
+        for (DeadLetterQueue.DeadLetter unknown : skipped) {
+            deadLetters.add(unknown);
         }
-        return "Warmed up and ready to go!";
+
+        LinkedHashMap<String, Object> results = new LinkedHashMap<>();
+        results.put("replayed", replayed);
+        results.put("skipped", skipped.size());
+        results.put("errors", errors);
+        results.put("remaining", deadLetters.size());
+        return Response.ok().entity(objectMapper.writeValueAsString(results)).build();
+    }
+
+    /**
+     * Rebuilds the user and site filters from the graph, dropping deleted keys, and returns their status.
+     */
+    @GET
+    @javax.ws.rs.Path("/filters/rebuild")
+    public Response rebuildFilters(@Context GraphDatabaseService db) throws IOException {
+        userFilter.rebuild(db, Labels.User, "userId");
+        siteFilter.rebuild(db, Labels.Site, "url");
+        LinkedHashMap<String, Object> results = new LinkedHashMap<>();
+        results.put("userFilter", userFilter.status());
+        results.put("siteFilter", siteFilter.status());
+        return Response.ok().entity(objectMapper.writeValueAsString(results)).build();
     }
 
     @GET
@@ -85,9 +226,13 @@ public class NeoService {
         return "Initialized!";
     }
 
+    /**
+     * Records a visit in a transaction of its own, or with bws.sync.groupCommit in the batch writers' next transaction,
+     * see groupCommit.
+     */
     @POST
     @javax.ws.rs.Path("/{userId}/visited")
-    public Response userVisited(String body, @PathParam("userId") String userId, @Context GraphDatabaseService db) throws IOException {
+    public Response userVisited(String body, @PathParam("userId") String userId, @Context GraphDatabaseService db) throws IOException, InterruptedException {
         HashMap input;
         try{
             input = objectMapper.readValue( body, HashMap.class);
@@ -101,71 +246,108 @@ public class NeoService {
 
         String url = (String)input.get("url");
 
-        try (Transaction tx = db.beginTx()) {
-            Long userNodeId = userCache.getIfPresent(userId);
-            Node userNode;
-            if(userNodeId == null){
-                // If the node id is not in the cache, let's try to find the node in the index.
-                ResourceIterator<Node> results = db.findNodesByLabelAndProperty(Labels.User, "userId", userId).iterator();
-                if (results.hasNext()) {
-                    userNode = results.next();
-                } else {
-                    // If the node is not in the index, then it probably doesn't exist, so we'll create one.
-                    UniqueFactory.UniqueNodeFactory userFactory = getUniqueUserFactory(db);
-                    userNode = userFactory.getOrCreate( "userId", userId );
-                }
+        if (BatchWriterConfig.SYNC_GROUP_COMMIT) {
+            return groupCommit(userId, url, BatchWriterConfig.SYNC_MAX_WAIT_MILLIS);
+        }
 
-                // Add it to the cache.
-                userCache.put(userId, userNode.getId());
-            } else {
-                // If the id is in the index, then just get the node.
-                userNode = db.getNodeById(userNodeId);
-            }
+        long visitedAt = currentMinute();
+        long userNodeId;
+        long siteNodeId;
+        boolean trustFilters = true;
+        while (true) {
+            try (Transaction tx = db.beginTx()) {
+                Node userNode = cachedNode(db, userCache, userId, "userId");
+                if(userNode == null){
+                    // If the node id is not in the cache, let's try to find the node in the index.
+                    userNode = indexedNode(db, userFilter, Labels.User, "userId", userId, trustFilters);
+                    if (userNode == null) {
+                        // If the node is not in the index, then it probably doesn't exist, so we'll create one.
+                        UniqueFactory.UniqueNodeFactory userFactory = getUniqueUserFactory(db);
+                        userNode = userFactory.getOrCreate( "userId", userId );
+                        userFilter.put(userId);
+                    }
+
+                    // Add it to the cache.
+                    userCache.put(userId, userNode.getId());
+                }
 
-            Long siteNodeId = siteCache.getIfPresent(url);
-            Node siteNode;
-            if (siteNodeId == null) {
-                // If the node id is not in the cache, let's try to find the node in the index.
-                ResourceIterator<Node> results = db.findNodesByLabelAndProperty(Labels.Site, "url", url).iterator();
-                if (results.hasNext()) {
-                    siteNode = results.next();
-                } else {
-                    // If the node is not in the index, then it probably doesn't exist, so we'll create one.
-                    UniqueFactory.UniqueNodeFactory siteFactory = getUniqueContentFactory(db);
-                    siteNode = siteFactory.getOrCreate( "url", url );
+                Node siteNode = cachedNode(db, siteCache, url, "url");
+                if (siteNode == null) {
+                    // If the node id is not in the cache, let's try to find the node in the index.
+                    siteNode = indexedNode(db, siteFilter, Labels.Site, "url", url, trustFilters);
+                    if (siteNode == null) {
+                        // If the node is not in the index, then it probably doesn't exist, so we'll create one.
+                        UniqueFactory.UniqueNodeFactory siteFactory = getUniqueContentFactory(db);
+                        siteNode = siteFactory.getOrCreate( "url", url );
+                        siteFilter.put(url);
+                    }
+
+                    // Add it to the cache.
+                    siteCache.put(url, siteNode.getId());
                 }
 
-                // Add it to the cache.
-                siteCache.put(url, siteNode.getId());
-            } else {
-                siteNode = db.getNodeById(siteNodeId);
+                CreateVisitedRelationship(userNode, siteNode, visitedAt);
+                tx.success();
+                userNodeId = userNode.getId();
+                siteNodeId = siteNode.getId();
+            } catch (ConstraintViolationException | TransactionFailureException e) {
+                if (!trustFilters) {
+                    throw e;
+                }
+                // A user or site the filters ruled out exists after all, look them up in the index this time.
+                trustFilters = false;
+                continue;
             }
+            break;
+        }
+        // Only once the visit has committed, a rolled back one must never be read. The same hooks as the writers'.
+        long[] visits = {visitedAt};
+        BatchWriteHandlers.VISITED.visible(userId, url, userNodeId, siteNodeId, visits);
+        BatchWriteHandlers.VISITED.committed(userId, url, userNodeId, siteNodeId, visits);
 
-            CreateVisitedRelationship(userNode, siteNode);
-            tx.success();
+        return javax.ws.rs.core.Response.status(javax.ws.rs.core.Response.Status.CREATED).build();
+    }
+
+    /**
+     * Queues the visit for the batch writers and waits for the transaction holding it, so the 201 still means the
+     * visit is in the graph while every request waiting at the same time shares one commit. A visit that fails on its
+     * own is dead lettered and answered with the error. One that hasn't committed after bws.sync.maxWaitMillis is
+     * answered with a 202, it is still queued and will be written.
+     */
+    Response groupCommit(String userId, String url, long maxWaitMillis) throws IOException, InterruptedException {
+        SettableFuture<Void> committed = SettableFuture.create();
+        if (!batchWriterPool.enqueue(userId, url, currentMinute(), committed)) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(objectMapper.writeValueAsString("Write queue is full, try again later")).build();
+        }
+        return awaitCommit(committed, maxWaitMillis);
+    }
+
+    Response awaitCommit(SettableFuture<Void> committed, long maxWaitMillis) throws IOException, InterruptedException {
+        try {
+            committed.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(objectMapper.writeValueAsString("Error writing visit " + e.getCause())).build();
+        } catch (TimeoutException e) {
+            BatchWriterMetrics.INSTANCE.groupCommitTimeouts.incrementAndGet();
+            return Response.status(Response.Status.ACCEPTED).entity(objectMapper.writeValueAsString("Visit queued, not committed within " + maxWaitMillis + " ms")).build();
         }
 
         return javax.ws.rs.core.Response.status(javax.ws.rs.core.Response.Status.CREATED).build();
     }
 
     public static void CreateVisitedRelationship(Node userNode, Node siteNode) {
-        Relationship visited;
-        org.neo4j.graphdb.Path visitedPath = ONE_HOP_VISITED_PATH.findSinglePath(userNode, siteNode);
-        if (visitedPath == null) {
-            visited = userNode.createRelationshipTo(siteNode, Relationships.VISITED);
-        } else {
-            visited = visitedPath.lastRelationship();
-        }
-
-        MutableDateTime currently = new MutableDateTime(DateTimeZone.UTC);
-        currently.setSecondOfMinute(0);
-        currently.setMillisOfSecond(0);
-        visited.setProperty("lastVisited", currently.getMillis());
-        long[] visitedList = (long[])visited.getProperty("visitedList", new long[]{});
-        HashSet<Long> visitedSet = new HashSet<>(Arrays.asList(ArrayUtils.toObject(visitedList)));
-
-        visitedSet.add(currently.getMillis());
-        visited.setProperty("visitedList", ArrayUtils.toPrimitive(visitedSet.toArray(new Long[visitedSet.size()])));
+        CreateVisitedRelationship(userNode, siteNode, currentMinute());
+    }
+
+    public static void CreateVisitedRelationship(Node userNode, Node siteNode, long... visits) {
+        Relationship visited = VisitedRelationships.getOrCreate(userNode, siteNode);
+        VisitHistory.record(visited, visits);
+    }
+
+    public static long currentMinute() {
+        // Same as truncating a UTC DateTime to the minute, without allocating one on every request.
+        long now = System.currentTimeMillis();
+        return now - now % 60_000L;
     }
 
     @POST
@@ -184,109 +366,259 @@ public class NeoService {
 
         String url = (String)input.get("url");
 
-        HashMap<String, Object> write = new HashMap<>();
-        HashMap<String, Object> data = new HashMap<>();
-        data.put("url", url);
-        data.put("userId", userId);
+        // The writer resolves the user and the site for the whole batch at once, so nothing is looked up here.
+        if (!batchWriterPool.enqueue(userId, url, currentMinute())) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(objectMapper.writeValueAsString("Write queue is full, try again later")).build();
+        }
 
-        boolean createUser = true;
-        boolean createContent = true;
+        return javax.ws.rs.core.Response.status(javax.ws.rs.core.Response.Status.CREATED).build();
+    }
 
-        try (Transaction tx = db.beginTx()) {
-            Long userNodeId = userCache.getIfPresent(userId);
-            Node userNode;
-            if(userNodeId == null){
-                // If the node id is not in the cache, let's try to find the node in the index.
-                ResourceIterator<Node> results = db.findNodesByLabelAndProperty(Labels.User, "userId", userId).iterator();
-                if (results.hasNext()) {
-                    userNode = results.next();
-                    data.put("userNodeId", userNode.getId());
-                    userCache.put(userId, userNode.getId());
-                    createUser = false;
-                }
+    /**
+     * Queues a write of any registered type, see BatchWriteHandler, from the node with the fromKey to the node whose
+     * key is in the body under the to node's property, e.g. {"url": ..} for visited. ts is in epoch milliseconds and
+     * defaults to now. Nothing is looked up here, the writers resolve the nodes of each batch together.
+     */
+    @POST
+    @javax.ws.rs.Path("/async/{fromKey}/{type}")
+    public Response asyncWrite(String body, @PathParam("fromKey") String fromKey, @PathParam("type") String type) throws IOException, InterruptedException {
+        BatchWriteHandler handler = BatchWriteHandlers.forType(type);
+        if (handler == null) {
+            return Response.status(Response.Status.NOT_FOUND).entity(objectMapper.writeValueAsString("Unknown write type " + type)).build();
+        }
 
-            } else {
-                data.put("userNodeId", userNodeId);
-                createUser = false;
-            }
+        HashMap input;
+        try{
+            input = objectMapper.readValue( body, HashMap.class);
+        } catch (Exception e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(objectMapper.writeValueAsString("Error parsing input " + body)).build();
+        }
 
-            Long siteNodeId = siteCache.getIfPresent(url);
-            Node siteNode;
-            if (siteNodeId == null) {
-                // If the node id is not in the cache, let's try to find the node in the index.
-                ResourceIterator<Node> results = db.findNodesByLabelAndProperty(Labels.Site, "url", url).iterator();
-                if (results.hasNext()) {
-                    siteNode = results.next();
-                    data.put("siteNodeId", siteNode.getId());
-                    siteCache.put(url, siteNode.getId());
-                    createContent = false;
-                }
+        Object toKey = input.get(handler.to().property);
+        if (!(toKey instanceof String)) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(objectMapper.writeValueAsString("Missing " + handler.to().property + " Parameter " + body)).build();
+        }
+        Object ts = input.get("ts");
+        long time = ts instanceof Number ? ((Number) ts).longValue() : System.currentTimeMillis();
+        String tsError = checkTimestamp(time, System.currentTimeMillis());
+        if (tsError != null) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(objectMapper.writeValueAsString(tsError)).build();
+        }
 
-            } else {
-                data.put("siteNodeId", siteNodeId);
-                createContent = false;
-            }
+        if (!batchWriterPool.enqueue(handler, fromKey, (String) toKey, time)) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(objectMapper.writeValueAsString("Write queue is full, try again later")).build();
+        }
 
-            if(!createContent && createUser){
-                write.put(ACTION, BatchWriterServiceAction.CREATE_USER);
-            }
+        return javax.ws.rs.core.Response.status(javax.ws.rs.core.Response.Status.CREATED).build();
+    }
 
-            if(createContent && !createUser){
-                write.put(ACTION, BatchWriterServiceAction.CREATE_SITE);
+    /**
+     * Queues a stream of newline delimited {"userId":..,"url":..,"ts":..} records for the batch writers.
+     * The body is read a line at a time and each line is parsed with the streaming parser, so a malformed line
+     * only rejects itself. ts is in epoch milliseconds and defaults to now.
+     * Nothing is looked up here, the writers resolve the users and sites of each batch together, and with a journal
+     * the request waits for it to be forced once, after the last line.
+     */
+    @POST
+    @javax.ws.rs.Path("/async/visits")
+    public Response asyncVisits(InputStream body, @Context GraphDatabaseService db) throws IOException, InterruptedException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        VisitRecord record = new VisitRecord();
+        long accepted = 0;
+        long rejected = 0;
+        ArrayList<String> errors = new ArrayList<>();
+
+        String line;
+        long lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
             }
-
-            if(createContent && createUser){
-                write.put(ACTION, BatchWriterServiceAction.CREATE_BOTH);
+            String error = record.parse(line);
+            if (error == null) {
+                long visitedAt = record.ts == VisitCommand.NO_ID ? currentMinute() : record.ts - record.ts % 60_000L;
+                if (!batchWriterPool.enqueueDeferred(record.userId, record.url, visitedAt)) {
+                    error = "Write queue is full, try again later";
+                }
             }
-
-            if(!createContent && !createUser){
-                write.put(ACTION, BatchWriterServiceAction.CREATE_VISITED);
+            if (error == null) {
+                accepted++;
+            } else {
+                rejected++;
+                if (errors.size() < MAX_REPORTED_ERRORS) {
+                    errors.add("Line " + lineNumber + ": " + error);
+                }
             }
-            write.put(DATA, data);
+        }
 
-            batchWriterService.queue.put(write);
+        if (accepted > 0) {
+            batchWriterPool.awaitDurable();
         }
 
-        return javax.ws.rs.core.Response.status(javax.ws.rs.core.Response.Status.CREATED).build();
+        LinkedHashMap<String, Object> results = new LinkedHashMap<>();
+        results.put("accepted", accepted);
+        results.put("rejected", rejected);
+        results.put("errors", errors);
+        return Response.ok(objectMapper.writeValueAsString(results)).build();
+    }
+
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    /**
+     * A visit's time ends up as the lastVisited of its relationship and orders its history, one from the far future
+     * would never be superseded.
+     * @return null if ts is between the epoch and now plus bws.ts.maxSkewMillis, or the reason it isn't.
+     */
+    static String checkTimestamp(long ts, long now) {
+        if (ts < 0 || ts > now + MAX_CLOCK_SKEW_MILLIS) {
+            return "ts out of range " + ts;
+        }
+        return null;
+    }
+
+    /**
+     * One NDJSON visit, reused for every line of a request.
+     */
+    static final class VisitRecord {
+        String userId;
+        String url;
+        long ts;
+
+        /**
+         * @return null if the line holds a valid visit, or the reason it doesn't.
+         */
+        String parse(String line) {
+            userId = null;
+            url = null;
+            ts = VisitCommand.NO_ID;
+            boolean hasTs = false;
+            try (JsonParser parser = jsonFactory.createJsonParser(line)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    return "Expected a JSON object";
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if ("userId".equals(field) && (value == JsonToken.VALUE_STRING || value == JsonToken.VALUE_NUMBER_INT)) {
+                        userId = parser.getText();
+                    } else if ("url".equals(field) && value == JsonToken.VALUE_STRING) {
+                        url = parser.getText();
+                    } else if ("ts".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                        ts = parser.getLongValue();
+                        hasTs = true;
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                if (parser.getCurrentToken() != JsonToken.END_OBJECT || parser.nextToken() != null) {
+                    return "Expected a single JSON object";
+                }
+            } catch (IOException e) {
+                return "Error parsing input " + e.getMessage();
+            }
+            if (userId == null || userId.isEmpty()) {
+                return "Missing userId Parameter";
+            }
+            if (url == null) {
+                return "Missing URL Parameter";
+            }
+            if (hasTs) {
+                return checkTimestamp(ts, System.currentTimeMillis());
+            }
+            return null;
+        }
     }
 
+    /**
+     * Streams the user's urls as a JSON array. Each url is copied in already encoded, see EncodedUrls, so the response
+     * is never built up as a String.
+     */
     @GET
     @javax.ws.rs.Path("/{userId}/visited")
     public Response getVisited(@PathParam("userId") String userId,
                               @QueryParam("days") @DefaultValue("1") int days,
+                              @QueryParam("offset") @DefaultValue("0") int offset,
+                              @QueryParam("limit") @DefaultValue("0") int limit,
                               @Context GraphDatabaseService db) throws IOException {
-        ArrayList<String> results = new ArrayList<>();
+        List<byte[]> results;
         try (Transaction tx = db.beginTx()) {
-            Long userNodeId = userCache.getIfPresent(userId);
-            Node userNode;
-            if(userNodeId == null){
+            Node userNode = cachedNode(db, userCache, userId, "userId");
+            if(userNode == null){
                 // If the node id is not in the cache, let's try to find the node in the index.
-                ResourceIterator<Node> iterator = db.findNodesByLabelAndProperty(Labels.User, "userId", userId).iterator();
-                if (iterator.hasNext()) {
-                    userNode = iterator.next();
-                } else {
+                userNode = indexedNode(db, userFilter, Labels.User, "userId", userId);
+                if (userNode == null) {
                     // If the node is not in the index, then we'll throw an error
                     return Response.status(Response.Status.BAD_REQUEST).entity(objectMapper.writeValueAsString("User not found " + userId)).build();
                 }
 
                 // Add it to the cache.
                 userCache.put(userId, userNode.getId());
-            } else {
-                // If the id is in the index, then just get the node.
-                userNode = db.getNodeById(userNodeId);
             }
 
-            for(Relationship visited : userNode.getRelationships(Direction.OUTGOING, Relationships.VISITED)){
-                DateTime when = new DateTime((long)visited.getProperty("lastVisited"));
-                DateTime currently = new DateTime();
+            results = RecentVisits.encodedUrls(userNode, days, offset, limit);
+        }
 
-                if(when.isAfter(currently.minusDays(days))){
-                    results.add((String)visited.getEndNode().getProperty("url"));
+        return javax.ws.rs.core.Response.ok(EncodedUrls.asJsonArray(results), MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    /**
+     * Looks the key up in the cache and returns its node, or null if it is not cached.
+     * Caches that only keep key hashes can hand back the node of a colliding key, and ids restored from a snapshot
+     * may have been reused since, so for those the node's property is checked against the key first.
+     * Must be called inside a transaction.
+     */
+    public static Node cachedNode(GraphDatabaseService db, IdentityCache cache, String key, String property) {
+        long cached = cache.getIfPresent(key);
+        if (cached == IdentityCache.NO_ID) {
+            return null;
+        }
+        boolean unconfirmed = (cached & IdentityCache.UNCONFIRMED) != 0;
+        long nodeId = cached & ~IdentityCache.UNCONFIRMED;
+        try {
+            Node node = db.getNodeById(nodeId);
+            if (cache.confirmsKeys() && !unconfirmed) {
+                return node;
+            }
+            if (key.equals(node.getProperty(property, null))) {
+                if (unconfirmed) {
+                    cache.put(key, nodeId);
                 }
+                return node;
             }
+        } catch (NotFoundException e) {
+            // The node was deleted, fall through and drop the stale entry.
         }
+        cache.invalidate(key);
+        return null;
+    }
+
+    /**
+     * @return the node with the key from the label index, or null if there is none or the filter rules it out.
+     */
+    static Node indexedNode(GraphDatabaseService db, KeyFilter filter, Label label, String property, String key) {
+        return indexedNode(db, filter, label, property, key, true);
+    }
 
-        return javax.ws.rs.core.Response.ok(objectMapper.writeValueAsString(results)).build();
+    /**
+     * Like indexedNode, but without trustFilter the index is probed regardless and a key the filter missed is put.
+     */
+    static Node indexedNode(GraphDatabaseService db, KeyFilter filter, Label label, String property, String key, boolean trustFilter) {
+        if (trustFilter && !filter.mightContain(key)) {
+            return null;
+        }
+        try (ResourceIterator<Node> results = db.findNodesByLabelAndProperty(label, property, key).iterator()) {
+            if (results.hasNext()) {
+                if (!trustFilter) {
+                    filter.put(key);
+                }
+                return results.next();
+            }
+        }
+        if (trustFilter) {
+            filter.falsePositive();
+        }
+        return null;
     }
 
     public static UniqueFactory.UniqueNodeFactory getUniqueContentFactory(final GraphDatabaseService db) {
@@ -0,0 +1,76 @@
+package com.neo4j.example.bws;
+
+import org.neo4j.graphdb.Label;
+
+/**
+ * How the batch writers find the node for a key of a BatchWriteHandler's writes: by a unique property of a label,
+ * through an identity cache and a KeyFilter in front of the label index. Nodes that don't exist yet are created with
+ * just the label and the property.
+ *
+ * The property should have a uniqueness constraint, like the ones /initialize creates for users and sites, or a node
+ * created by a writer at the same time as by someone else can end up there twice.
+ */
+public class NodeKey {
+
+    // Users and sites share the caches and filters of the synchronous endpoints, which are only looked up when used
+    // so queueing a command doesn't initialize NeoService.
+    public static final NodeKey USER = new NodeKey(Labels.User, "userId") {
+        @Override
+        IdentityCache cache() {
+            return NeoService.userCache;
+        }
+
+        @Override
+        KeyFilter filter() {
+            return NeoService.userFilter;
+        }
+    };
+
+    public static final NodeKey SITE = new NodeKey(Labels.Site, "url") {
+        @Override
+        IdentityCache cache() {
+            return NeoService.siteCache;
+        }
+
+        @Override
+        KeyFilter filter() {
+            return NeoService.siteFilter;
+        }
+    };
+
+    final Label label;
+    final String property;
+    private final IdentityCache cache;
+    private final KeyFilter filter;
+
+    /**
+     * A key with an identity cache of its own, for up to cacheSize keys. Its filter is only filled in by warmups for
+     * users and sites, so for other labels it never rules out a key and every miss in the cache goes to the index.
+     */
+    public NodeKey(Label label, String property, long cacheSize) {
+        this.label = label;
+        this.property = property;
+        this.cache = IdentityCaches.newIdentityCache(cacheSize);
+        this.filter = new KeyFilter(label.name(), 1_024);
+    }
+
+    private NodeKey(Label label, String property) {
+        this.label = label;
+        this.property = property;
+        this.cache = null;
+        this.filter = null;
+    }
+
+    IdentityCache cache() {
+        return cache;
+    }
+
+    KeyFilter filter() {
+        return filter;
+    }
+
+    @Override
+    public String toString() {
+        return label.name() + "." + property;
+    }
+}
@@ -0,0 +1,267 @@
+package com.neo4j.example.bws;
+
+import com.google.common.cache.CacheStats;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An off-heap, 8-way set associative cache of 64 bit key hashes to node ids.
+ *
+ * Each entry is 16 bytes of direct memory: the key hash and the node id. Keys themselves are not stored, so a
+ * hit may be a hash collision and has to be confirmed against the node, see confirmsKeys(). The reference bits
+ * for CLOCK (second chance) eviction within a set are kept on heap, one int per set.
+ *
+ * Reads are lock-free. A read racing a write to the same slot can see a mismatched hash and id, which the
+ * confirmation step treats like any other collision. Writes lock their set's stripe. Reads only ever write to
+ * the reference bits, which are updated with compare-and-set by reads and writes alike.
+ */
+public class OffHeapIdentityCache implements IdentityCache {
+
+    private static final int WAYS = 8;
+    private static final int ENTRY_SIZE = 16;
+    private static final long EMPTY = 0L;
+    private static final int LOCK_STRIPES = 1_024;
+
+    private final ByteBuffer entries;
+    private final AtomicIntegerArray referenced;
+    private final int sets;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public OffHeapIdentityCache(long maximumSize) {
+        long setCount = Math.max(1, (maximumSize + WAYS - 1) / WAYS);
+        if (setCount * WAYS * ENTRY_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Off heap identity cache is limited to " +
+                    Integer.MAX_VALUE / ENTRY_SIZE + " entries, asked for " + maximumSize);
+        }
+        sets = (int) setCount;
+        entries = ByteBuffer.allocateDirect(sets * WAYS * ENTRY_SIZE);
+        referenced = new AtomicIntegerArray(sets);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public long getIfPresent(String key) {
+        return getIfPresent(hash(key));
+    }
+
+    /**
+     * Looks up an entry by a hash the caller computed itself, for keys that aren't strings. Zero is not a valid hash.
+     */
+    public long getIfPresent(long hash) {
+        int base = setOffset(hash);
+        for (int way = 0; way < WAYS; way++) {
+            int offset = base + way * ENTRY_SIZE;
+            if (entries.getLong(offset) == hash) {
+                long nodeId = entries.getLong(offset + 8);
+                reference(base, way);
+                hits.incrementAndGet();
+                return nodeId;
+            }
+        }
+        misses.incrementAndGet();
+        return NO_ID;
+    }
+
+    @Override
+    public void put(String key, long nodeId) {
+        put(hash(key), nodeId);
+    }
+
+    public void put(long hash, long nodeId) {
+        int base = setOffset(hash);
+        synchronized (lockFor(base)) {
+            int free = -1;
+            for (int way = 0; way < WAYS; way++) {
+                int offset = base + way * ENTRY_SIZE;
+                long slotHash = entries.getLong(offset);
+                if (slotHash == hash) {
+                    entries.putLong(offset + 8, nodeId);
+                    reference(base, way);
+                    return;
+                }
+                if (slotHash == EMPTY && free == -1) {
+                    free = offset;
+                }
+            }
+            if (free == -1) {
+                free = evict(base);
+            } else {
+                size.incrementAndGet();
+                unreference(base, (free - base) / ENTRY_SIZE);
+            }
+            // Write the id before the hash, so a concurrent reader matching the hash sees the right id.
+            entries.putLong(free + 8, nodeId);
+            entries.putLong(free, hash);
+        }
+    }
+
+    /**
+     * Second chance: clears reference bits until it finds an entry that hasn't been read since the last pass.
+     */
+    private int evict(int base) {
+        int set = base / (WAYS * ENTRY_SIZE);
+        int way = (int) (evictions.get() & (WAYS - 1));
+        while (true) {
+            int bit = 1 << way;
+            int bits = referenced.get(set);
+            if ((bits & bit) == 0) {
+                evictions.incrementAndGet();
+                return base + way * ENTRY_SIZE;
+            }
+            // Lost to a read setting another way's bit, look at this way again.
+            if (referenced.compareAndSet(set, bits, bits & ~bit)) {
+                way = (way + 1) & (WAYS - 1);
+            }
+        }
+    }
+
+    private void reference(int base, int way) {
+        int set = base / (WAYS * ENTRY_SIZE);
+        int bit = 1 << way;
+        int bits;
+        do {
+            bits = referenced.get(set);
+            if ((bits & bit) != 0) {
+                return;
+            }
+        } while (!referenced.compareAndSet(set, bits, bits | bit));
+    }
+
+    private void unreference(int base, int way) {
+        int set = base / (WAYS * ENTRY_SIZE);
+        int bit = 1 << way;
+        int bits;
+        do {
+            bits = referenced.get(set);
+            if ((bits & bit) == 0) {
+                return;
+            }
+        } while (!referenced.compareAndSet(set, bits, bits & ~bit));
+    }
+
+    @Override
+    public void invalidate(String key) {
+        invalidate(hash(key));
+    }
+
+    public void invalidate(long hash) {
+        int base = setOffset(hash);
+        synchronized (lockFor(base)) {
+            for (int way = 0; way < WAYS; way++) {
+                int offset = base + way * ENTRY_SIZE;
+                if (entries.getLong(offset) == hash) {
+                    entries.putLong(offset, EMPTY);
+                    size.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        for (int set = 0; set < sets; set++) {
+            int base = set * WAYS * ENTRY_SIZE;
+            synchronized (lockFor(base)) {
+                for (int way = 0; way < WAYS; way++) {
+                    entries.putLong(base + way * ENTRY_SIZE, EMPTY);
+                }
+                referenced.set(set, 0);
+            }
+        }
+        size.set(0);
+    }
+
+    @Override
+    public long size() {
+        return size.get();
+    }
+
+    @Override
+    public boolean confirmsKeys() {
+        return false;
+    }
+
+    @Override
+    public CacheStats stats() {
+        return new CacheStats(hits.get(), misses.get(), 0, 0, 0, evictions.get());
+    }
+
+    /**
+     * Key hashes and node ids, ending with a hash of zero. Every hit is confirmed anyway, so restored entries
+     * need no marking.
+     */
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        int capacity = entries.capacity();
+        for (int offset = 0; offset < capacity; offset += ENTRY_SIZE) {
+            long hash = entries.getLong(offset);
+            if (hash != EMPTY) {
+                out.writeLong(hash);
+                out.writeLong(entries.getLong(offset + 8));
+            }
+        }
+        out.writeLong(EMPTY);
+    }
+
+    @Override
+    public void readFrom(ByteBuffer in) {
+        long hash;
+        while ((hash = in.getLong()) != EMPTY) {
+            put(hash, in.getLong());
+        }
+    }
+
+    public long offHeapBytes() {
+        return entries.capacity();
+    }
+
+    private int setOffset(long hash) {
+        return (int) ((hash >>> 1) % sets) * WAYS * ENTRY_SIZE;
+    }
+
+    private Object lockFor(int base) {
+        return locks[(base / (WAYS * ENTRY_SIZE)) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * 64 bits made from String.hashCode and an FNV-1a pass over the chars, mixed with the murmur3 finalizer.
+     * Zero is reserved for empty slots.
+     */
+    static long hash(String key) {
+        int fnv = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            fnv = (fnv ^ key.charAt(i)) * 0x01000193;
+        }
+        long hash = ((long) key.hashCode() << 32) | (fnv & 0xffffffffL);
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == EMPTY ? 1L : hash;
+    }
+
+    /**
+     * 64 bits made from a pair of ids, for caches keyed by two nodes. Zero is reserved for empty slots.
+     */
+    static long hash(long first, long second) {
+        long hash = first * 0x9e3779b97f4a7c15L + second;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == EMPTY ? 1L : hash;
+    }
+}
@@ -0,0 +1,217 @@
+package com.neo4j.example.bws;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A user's sites ordered by when they were last visited, so getVisited only reads the visits inside its window.
+ *
+ * It is built from the user's VISITED relationships the first time the user is read and then kept up to date by
+ * visited, which appends the site with its new visit once the transaction holding it has committed. Older entries for
+ * the same site are left in place and skipped by readers, and are only compacted away when the arrays have to grow.
+ * A visit that commits while the user is being loaded may or may not be seen by the load, so such a user is dropped
+ * again once loaded and read afresh the next time.
+ *
+ * The encoded urls for up to MAX_RESPONSES numbers of days, see EncodedUrls, are cached until the next write or the
+ * next minute, whichever comes first.
+ * Users are weighed by their entries when they are loaded, so the cache's bound is approximate for users that keep
+ * visiting new sites afterwards.
+ */
+final class RecentVisits {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private static final Cache<Long, RecentVisits> cache = CacheBuilder.newBuilder()
+            .maximumWeight(Long.getLong("bws.cache.recentVisits", 10_000_000L))
+            .weigher(new Weigher<Long, RecentVisits>() {
+                @Override
+                public int weigh(Long userNodeId, RecentVisits recentVisits) {
+                    return recentVisits.siteNodeIds.length;
+                }
+            })
+            .build();
+
+    // Users being loaded, mapped to whether a visit was committed for them meanwhile.
+    private static final ConcurrentHashMap<Long, Boolean> loading = new ConcurrentHashMap<>();
+
+    private static final int MAX_RESPONSES = 4;
+
+    // Ascending by lastVisited, a site may appear more than once and only its last entry counts.
+    private long[] siteNodeIds;
+    private long[] lastVisited;
+    private int size;
+
+    private final HashMap<Integer, List<byte[]>> responses = new HashMap<>();
+    private long responsesMinute;
+
+    private RecentVisits(long[] siteNodeIds, long[] lastVisited, int size) {
+        this.siteNodeIds = siteNodeIds;
+        this.lastVisited = lastVisited;
+        this.size = size;
+    }
+
+    /**
+     * @return the urls the user visited in the last days as JSON strings, most recent first.
+     * Must be called inside a transaction.
+     */
+    static List<byte[]> encodedUrls(final Node userNode, int days, int offset, int limit) {
+        final long userNodeId = userNode.getId();
+        final boolean[] loaded = new boolean[1];
+        RecentVisits recentVisits;
+        try {
+            recentVisits = cache.get(userNodeId, new Callable<RecentVisits>() {
+                @Override
+                public RecentVisits call() {
+                    loaded[0] = true;
+                    loading.put(userNodeId, Boolean.FALSE);
+                    return load(userNode);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not load the visits of user " + userNodeId, e.getCause());
+        } finally {
+            // The marker is only removed once the loaded visits are in the cache, see visited.
+            if (loaded[0] && Boolean.TRUE.equals(loading.remove(userNodeId))) {
+                cache.invalidate(userNodeId);
+            }
+        }
+
+        List<byte[]> urls = recentVisits.encodedUrls(userNode, days);
+        int from = Math.min(Math.max(0, offset), urls.size());
+        int to = limit > 0 ? (int) Math.min((long) from + limit, urls.size()) : urls.size();
+        return urls.subList(from, to);
+    }
+
+    /**
+     * Records a committed visit for users whose visits are cached, the others are loaded from the graph when they are
+     * read. A user being loaded is marked first, the load may have started too early to see the visit, and only
+     * then looked up, by which time a load that cleared its mark has put the user in the cache.
+     */
+    static void visited(long userNodeId, long siteNodeId, long visitedAt) {
+        loading.replace(userNodeId, Boolean.FALSE, Boolean.TRUE);
+        RecentVisits recentVisits = cache.getIfPresent(userNodeId);
+        if (recentVisits != null) {
+            recentVisits.add(siteNodeId, visitedAt);
+        }
+    }
+
+    /**
+     * Drops a user whose VISITED relationships were deleted, they are loaded again on the next read.
+     */
+    static void invalidate(long userNodeId) {
+        cache.invalidate(userNodeId);
+    }
+
+    static void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private static RecentVisits load(Node userNode) {
+        int count = userNode.getDegree(Relationships.VISITED, Direction.OUTGOING);
+        long[][] entries = new long[Math.max(count, 1)][];
+        int size = 0;
+        for (Relationship visited : userNode.getRelationships(Direction.OUTGOING, Relationships.VISITED)) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entries[size++] = new long[]{(long) visited.getProperty(VisitHistory.LAST_VISITED, 0L), visited.getEndNode().getId()};
+        }
+        Arrays.sort(entries, 0, size, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+
+        long[] siteNodeIds = new long[Math.max(size, 4)];
+        long[] lastVisited = new long[siteNodeIds.length];
+        for (int i = 0; i < size; i++) {
+            lastVisited[i] = entries[i][0];
+            siteNodeIds[i] = entries[i][1];
+        }
+        return new RecentVisits(siteNodeIds, lastVisited, size);
+    }
+
+    private synchronized void add(long siteNodeId, long visitedAt) {
+        if (size == siteNodeIds.length) {
+            compact();
+        }
+        // Visits almost always arrive in order, anything older is moved into place.
+        int at = size;
+        while (at > 0 && lastVisited[at - 1] > visitedAt) {
+            at--;
+        }
+        System.arraycopy(siteNodeIds, at, siteNodeIds, at + 1, size - at);
+        System.arraycopy(lastVisited, at, lastVisited, at + 1, size - at);
+        siteNodeIds[at] = siteNodeId;
+        lastVisited[at] = visitedAt;
+        size++;
+        responses.clear();
+    }
+
+    /**
+     * Drops the superseded entries for sites visited again, and grows the arrays if that didn't free up half.
+     */
+    private void compact() {
+        HashSet<Long> seen = new HashSet<>();
+        int kept = size;
+        for (int i = size - 1; i >= 0; i--) {
+            if (seen.add(siteNodeIds[i])) {
+                kept--;
+                siteNodeIds[kept] = siteNodeIds[i];
+                lastVisited[kept] = lastVisited[i];
+            }
+        }
+        int remaining = size - kept;
+        System.arraycopy(siteNodeIds, kept, siteNodeIds, 0, remaining);
+        System.arraycopy(lastVisited, kept, lastVisited, 0, remaining);
+        size = remaining;
+        if (size * 2 > siteNodeIds.length) {
+            siteNodeIds = Arrays.copyOf(siteNodeIds, siteNodeIds.length * 2);
+            lastVisited = Arrays.copyOf(lastVisited, lastVisited.length * 2);
+        }
+    }
+
+    private synchronized List<byte[]> encodedUrls(Node userNode, int days) {
+        long now = System.currentTimeMillis();
+        long minute = NeoService.currentMinute();
+        if (minute != responsesMinute) {
+            responses.clear();
+            responsesMinute = minute;
+        }
+        List<byte[]> urls = responses.get(days);
+        if (urls != null) {
+            return urls;
+        }
+
+        long since = now - days * DAY;
+        HashSet<Long> seen = new HashSet<>();
+        ArrayList<byte[]> found = new ArrayList<>();
+        for (int i = size - 1; i >= 0 && lastVisited[i] > since; i--) {
+            if (seen.add(siteNodeIds[i])) {
+                found.add(EncodedUrls.get(userNode.getGraphDatabase(), siteNodeIds[i]));
+            }
+        }
+        urls = Collections.unmodifiableList(found);
+        // Any number of days can be asked for, only the first few are kept.
+        if (responses.size() < MAX_RESPONSES) {
+            responses.put(days, urls);
+        }
+        return urls;
+    }
+}
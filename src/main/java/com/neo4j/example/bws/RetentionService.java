@@ -0,0 +1,265 @@
+package com.neo4j.example.bws;
+
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.IdGeneratorFactory;
+import org.neo4j.kernel.IdType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Enforces the visit retention policy in the background: visits older than bws.retention.minuteDays are kept as one
+ * per day, visits older than bws.retention.days are dropped, and VISITED relationships left without visits are
+ * deleted.
+ *
+ * Users are worked through by node id, bws.retention.chunkSize ids at a time with bws.retention.pauseMillis between
+ * chunks, on a minimum priority thread. The VISITED relationships of a chunk are compacted in transactions of at most
+ * bws.retention.relationshipsPerTransaction, so a user with a very high degree doesn't hold the locks the writers need
+ * for long. A chunk is skipped while the writers' queues are more than half full, and one that fails, say on a
+ * deadlock with a writer, is retried after the pause, compacting again is harmless. Once every user has been seen
+ * the next pass starts bws.retention.intervalMinutes later.
+ *
+ * Nothing is compacted or deleted unless one of the two retentions is set, e.g. -Dbws.retention.minuteDays=30.
+ */
+public class RetentionService extends AbstractScheduledService {
+
+    private static final Logger logger = Logger.getLogger(RetentionService.class.getName());
+
+    static final int MINUTE_DAYS = Integer.getInteger("bws.retention.minuteDays", 0);
+    static final int DAYS = Integer.getInteger("bws.retention.days", 0);
+    static final int CHUNK_SIZE = Integer.getInteger("bws.retention.chunkSize", 1_000);
+    static final int RELATIONSHIPS_PER_TRANSACTION = Math.max(1, Integer.getInteger("bws.retention.relationshipsPerTransaction", 10_000));
+    static final long PAUSE_MILLIS = Long.getLong("bws.retention.pauseMillis", 100L);
+    static final long INTERVAL_MINUTES = Long.getLong("bws.retention.intervalMinutes", 60L);
+
+    // Written under RetentionService.class, volatile so every request after the first skips the lock in start.
+    private static volatile RetentionService instance;
+    private static volatile boolean startCalled;
+
+    private final GraphDatabaseService graphDb;
+
+    // Written by the service thread only.
+    private volatile long nextNodeId;
+    private long passStartedAt = System.currentTimeMillis();
+    private volatile boolean passDone;
+
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong users = new AtomicLong();
+    private final AtomicLong kept = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong failedChunks = new AtomicLong();
+
+    RetentionService(GraphDatabaseService graphDb) {
+        this.graphDb = graphDb;
+    }
+
+    /**
+     * Starts the service for the database the first time it is called, if a retention is configured.
+     */
+    static void start(GraphDatabaseService graphDb) {
+        // NeoService calls this for every request, it is only the first one that needs to start anything.
+        if (startCalled) {
+            return;
+        }
+        startIfConfigured(graphDb);
+    }
+
+    private static synchronized void startIfConfigured(GraphDatabaseService graphDb) {
+        if (startCalled) {
+            return;
+        }
+        startCalled = true;
+        if (MINUTE_DAYS <= 0 && DAYS <= 0) {
+            return;
+        }
+        instance = new RetentionService(graphDb);
+        instance.startAsync();
+        logger.info("Started RetentionService, minute visits for " + MINUTE_DAYS + " days, all visits for " +
+                (DAYS > 0 ? DAYS + " days" : "ever"));
+    }
+
+    static RetentionService current() {
+        return instance;
+    }
+
+    @Override
+    protected void runOneIteration() throws Exception {
+        passDone = false;
+        BatchWriterPool pool = BatchWriterPool.INSTANCE;
+        if (pool.getQueueSize() > BatchWriterConfig.QUEUE_CAPACITY * pool.getWriters().length / 2) {
+            return;
+        }
+
+        long highId;
+        long end = nextNodeId + CHUNK_SIZE;
+        try {
+            highId = ((GraphDatabaseAPI) graphDb).getDependencyResolver()
+                    .resolveDependency(IdGeneratorFactory.class).get(IdType.NODE).getHighId();
+            end = Math.min(highId, end);
+            process(nextNodeId, end, System.currentTimeMillis());
+            nextNodeId = end;
+        } catch (RuntimeException e) {
+            // A failed service would stop for good, so even unexpected errors are only logged.
+            failedChunks.incrementAndGet();
+            logger.warning("Error applying the retention to nodes " + nextNodeId + " to " + end + ", will retry: " + e);
+            return;
+        }
+
+        if (nextNodeId >= highId) {
+            passes.incrementAndGet();
+            logger.info("Applied the retention to every user in " +
+                    TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - passStartedAt) + " seconds");
+            nextNodeId = 0;
+            passDone = true;
+        }
+    }
+
+    /**
+     * Applies the retention to the users with ids from start to end: their VISITED relationships are listed in one
+     * read, then compacted a slice at a time, see compact.
+     */
+    private void process(long start, long end, long now) {
+        if (start == 0) {
+            passStartedAt = now;
+        }
+        long today = now - now % VisitHistory.DAY;
+        long minutesSince = MINUTE_DAYS > 0 ? today - MINUTE_DAYS * VisitHistory.DAY : Long.MIN_VALUE;
+        long visitsSince = DAYS > 0 ? today - DAYS * VisitHistory.DAY : Long.MIN_VALUE;
+
+        long[] relationshipIds = new long[64];
+        int count = 0;
+        long usersSeen = 0;
+        try (Transaction tx = graphDb.beginTx()) {
+            for (long id = start; id < end; id++) {
+                Node user;
+                try {
+                    user = graphDb.getNodeById(id);
+                } catch (NotFoundException e) {
+                    continue;
+                }
+                if (!user.hasLabel(Labels.User)) {
+                    continue;
+                }
+                usersSeen++;
+                for (Relationship visited : user.getRelationships(Direction.OUTGOING, Relationships.VISITED)) {
+                    if (count == relationshipIds.length) {
+                        relationshipIds = Arrays.copyOf(relationshipIds, count * 2);
+                    }
+                    relationshipIds[count++] = visited.getId();
+                }
+            }
+            tx.success();
+        }
+
+        for (int from = 0; from < count; from += RELATIONSHIPS_PER_TRANSACTION) {
+            compact(relationshipIds, from, Math.min(count, from + RELATIONSHIPS_PER_TRANSACTION), minutesSince, visitsSince);
+        }
+        users.addAndGet(usersSeen);
+    }
+
+    /**
+     * Compacts the relationships from from to to in one transaction, deleting the ones left without visits. The
+     * caches are only updated once it has committed.
+     */
+    private void compact(long[] relationshipIds, int from, int to, long minutesSince, long visitsSince) {
+        List<long[]> deletedPairs = new ArrayList<>();
+        long keptSeen = 0;
+        try (Transaction tx = graphDb.beginTx()) {
+            for (int i = from; i < to; i++) {
+                Relationship visited;
+                try {
+                    visited = graphDb.getRelationshipById(relationshipIds[i]);
+                } catch (NotFoundException e) {
+                    continue;
+                }
+                // The relationship may have been deleted since it was listed and its id reused.
+                if (!visited.isType(Relationships.VISITED)) {
+                    continue;
+                }
+                if (VisitHistory.compact(tx, visited, minutesSince, visitsSince)) {
+                    keptSeen++;
+                } else {
+                    deletedPairs.add(new long[]{visited.getStartNode().getId(), visited.getEndNode().getId()});
+                    visited.delete();
+                }
+            }
+            tx.success();
+        }
+
+        kept.addAndGet(keptSeen);
+        deleted.addAndGet(deletedPairs.size());
+        for (long[] pair : deletedPairs) {
+            VisitedRelationships.cache.invalidate(OffHeapIdentityCache.hash(pair[0], pair[1]));
+            RecentVisits.invalidate(pair[0]);
+        }
+    }
+
+    Map<String, Object> status() {
+        LinkedHashMap<String, Object> status = new LinkedHashMap<>();
+        status.put("minuteDays", MINUTE_DAYS);
+        status.put("days", DAYS);
+        status.put("passes", passes.get());
+        status.put("nextNodeId", nextNodeId);
+        status.put("users", users.get());
+        status.put("relationshipsKept", kept.get());
+        status.put("relationshipsDeleted", deleted.get());
+        status.put("failedChunks", failedChunks.get());
+        return status;
+    }
+
+    @Override
+    protected String serviceName() {
+        return "RetentionService";
+    }
+
+    /**
+     * A daemon thread at minimum priority, so the writers and request threads always come first.
+     */
+    @Override
+    protected ScheduledExecutorService executor() {
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat(serviceName()).setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+        addListener(new Listener() {
+            @Override
+            public void terminated(State from) {
+                executor.shutdown();
+            }
+
+            @Override
+            public void failed(State from, Throwable failure) {
+                executor.shutdown();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return executor;
+    }
+
+    @Override
+    protected Scheduler scheduler() {
+        return new CustomScheduler() {
+            @Override
+            protected Schedule getNextSchedule() throws Exception {
+                if (passDone) {
+                    return new Schedule(INTERVAL_MINUTES, TimeUnit.MINUTES);
+                }
+                return new Schedule(PAUSE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+}
@@ -0,0 +1,146 @@
+package com.neo4j.example.bws;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A single queued visit. Instances are preallocated by the ring buffer and by the writer and are reused,
+ * so they must never be held on to once they have been drained or processed.
+ *
+ * Writes of other types than VISITED, see BatchWriteHandler, are queued the same way: userId and url then hold the
+ * keys of their from and to nodes, and visits their times.
+ */
+public class VisitCommand {
+    public static final long NO_ID = -1L;
+
+    BatchWriteHandler handler;
+    String userId;
+    String url;
+    long userNodeId = NO_ID;
+    long siteNodeId = NO_ID;
+    long visitedAt;
+    // Offset just past this visit's journal record, or VisitJournal.NO_OFFSET if it wasn't journaled.
+    long journalOffset = VisitJournal.NO_OFFSET;
+    // System.nanoTime() when the visit was queued, 0 for visits that were replayed from the journal.
+    long enqueuedAt;
+
+    // Minute-truncated timestamps merged into this command when coalescing a batch, see BatchWriterService.
+    long[] visits = new long[4];
+    int visitCount;
+
+    // Set for writes from synchronous requests in group commit mode, completed once the transaction holding the write
+    // has committed or the write has been dead lettered. Writes coalesced into this one bring theirs along.
+    SettableFuture<Void> committed;
+    ArrayList<SettableFuture<Void>> coalescedCommitted;
+
+    void set(String userId, String url, long userNodeId, long siteNodeId, long visitedAt) {
+        set(userId, url, userNodeId, siteNodeId, visitedAt, VisitJournal.NO_OFFSET);
+    }
+
+    void set(String userId, String url, long userNodeId, long siteNodeId, long visitedAt, long journalOffset) {
+        set(BatchWriteHandlers.VISITED, userId, url, userNodeId, siteNodeId, visitedAt, journalOffset);
+    }
+
+    void set(BatchWriteHandler handler, String userId, String url, long userNodeId, long siteNodeId, long visitedAt, long journalOffset) {
+        this.handler = handler;
+        this.journalOffset = journalOffset;
+        this.enqueuedAt = 0;
+        this.userId = userId;
+        this.url = url;
+        this.userNodeId = userNodeId;
+        this.siteNodeId = siteNodeId;
+        this.visitedAt = visitedAt;
+        this.visitCount = 0;
+        this.committed = null;
+        this.coalescedCommitted = null;
+    }
+
+    void copyFrom(VisitCommand other) {
+        set(other.handler, other.userId, other.url, other.userNodeId, other.siteNodeId, other.visitedAt, other.journalOffset);
+        enqueuedAt = other.enqueuedAt;
+        committed = other.committed;
+    }
+
+    void clear() {
+        handler = null;
+        userId = null;
+        url = null;
+        committed = null;
+        coalescedCommitted = null;
+    }
+
+    /**
+     * Takes over the futures of a write that was coalesced into this one.
+     */
+    void takeCommitted(VisitCommand other) {
+        if (other.committed == null) {
+            return;
+        }
+        if (committed == null) {
+            committed = other.committed;
+        } else {
+            if (coalescedCommitted == null) {
+                coalescedCommitted = new ArrayList<>(2);
+            }
+            coalescedCommitted.add(other.committed);
+        }
+        if (other.coalescedCommitted != null) {
+            if (coalescedCommitted == null) {
+                coalescedCommitted = new ArrayList<>(other.coalescedCommitted.size());
+            }
+            coalescedCommitted.addAll(other.coalescedCommitted);
+        }
+        other.committed = null;
+        other.coalescedCommitted = null;
+    }
+
+    /**
+     * Completes the futures of the requests waiting on this write, successfully if failure is null. Futures that were
+     * already completed are left as they are.
+     */
+    void complete(Exception failure) {
+        if (committed == null) {
+            return;
+        }
+        complete(committed, failure);
+        if (coalescedCommitted != null) {
+            for (SettableFuture<Void> future : coalescedCommitted) {
+                complete(future, failure);
+            }
+        }
+    }
+
+    private static void complete(SettableFuture<Void> future, Exception failure) {
+        if (failure == null) {
+            future.set(null);
+        } else {
+            future.setException(failure);
+        }
+    }
+
+    void addVisit(long visit) {
+        for (int i = 0; i < visitCount; i++) {
+            if (visits[i] == visit) {
+                return;
+            }
+        }
+        if (visitCount == visits.length) {
+            visits = Arrays.copyOf(visits, visitCount * 2);
+        }
+        visits[visitCount++] = visit;
+    }
+
+    long[] getVisits() {
+        long[] result = Arrays.copyOf(visits, visitCount);
+        Arrays.sort(result);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "VisitCommand{type=" + handler + ", userId=" + userId + ", url=" + url +
+                ", userNodeId=" + userNodeId + ", siteNodeId=" + siteNodeId + ", visitedAt=" + visitedAt + "}";
+    }
+}
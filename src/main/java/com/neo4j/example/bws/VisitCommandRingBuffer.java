@@ -0,0 +1,127 @@
+package com.neo4j.example.bws;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, preallocated, lock-free multi producer / single consumer queue of VisitCommands.
+ *
+ * Producers claim a sequence with a CAS on the tail, fill in the slot and then publish it.
+ * The single consumer copies published slots into its own commands and releases them by moving the head.
+ */
+public class VisitCommandRingBuffer {
+
+    private final VisitCommand[] slots;
+    private final AtomicLongArray published;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    public VisitCommandRingBuffer(int requestedCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+        slots = new VisitCommand[capacity];
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new VisitCommand();
+            published.set(i, -1L);
+        }
+        mask = capacity - 1;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Tries to enqueue a visit without waiting.
+     * @return false if the buffer is full.
+     */
+    public boolean offer(String userId, String url, long userNodeId, long siteNodeId, long visitedAt) {
+        return offer(userId, url, userNodeId, siteNodeId, visitedAt, VisitJournal.NO_OFFSET);
+    }
+
+    public boolean offer(String userId, String url, long userNodeId, long siteNodeId, long visitedAt, long journalOffset) {
+        return offer(BatchWriteHandlers.VISITED, userId, url, userNodeId, siteNodeId, visitedAt, journalOffset);
+    }
+
+    public boolean offer(BatchWriteHandler handler, String userId, String url, long userNodeId, long siteNodeId, long visitedAt, long journalOffset) {
+        return offer(handler, userId, url, userNodeId, siteNodeId, visitedAt, journalOffset, null);
+    }
+
+    /**
+     * @param committed completed by the writer once the write is committed or dead lettered, or null.
+     */
+    public boolean offer(BatchWriteHandler handler, String userId, String url, long userNodeId, long siteNodeId, long visitedAt, long journalOffset, SettableFuture<Void> committed) {
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head.get() >= slots.length) {
+                return false;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        int index = (int) sequence & mask;
+        slots[index].set(handler, userId, url, userNodeId, siteNodeId, visitedAt, journalOffset);
+        slots[index].enqueuedAt = System.nanoTime();
+        slots[index].committed = committed;
+        published.lazySet(index, sequence);
+        return true;
+    }
+
+    /**
+     * Enqueues a visit, parking the calling thread until there is room for it.
+     */
+    public void put(String userId, String url, long userNodeId, long siteNodeId, long visitedAt) throws InterruptedException {
+        put(userId, url, userNodeId, siteNodeId, visitedAt, VisitJournal.NO_OFFSET);
+    }
+
+    public void put(String userId, String url, long userNodeId, long siteNodeId, long visitedAt, long journalOffset) throws InterruptedException {
+        put(BatchWriteHandlers.VISITED, userId, url, userNodeId, siteNodeId, visitedAt, journalOffset);
+    }
+
+    public void put(BatchWriteHandler handler, String userId, String url, long userNodeId, long siteNodeId, long visitedAt, long journalOffset) throws InterruptedException {
+        put(handler, userId, url, userNodeId, siteNodeId, visitedAt, journalOffset, null);
+    }
+
+    public void put(BatchWriteHandler handler, String userId, String url, long userNodeId, long siteNodeId, long visitedAt, long journalOffset, SettableFuture<Void> committed) throws InterruptedException {
+        while (!offer(handler, userId, url, userNodeId, siteNodeId, visitedAt, journalOffset, committed)) {
+            LockSupport.parkNanos(1_000);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Copies up to max published commands into the given array and releases their slots.
+     * Must only be called from the single consumer thread.
+     * @return the number of commands copied.
+     */
+    public int drainTo(VisitCommand[] commands, int max) {
+        long current = head.get();
+        int limit = Math.min(max, commands.length);
+        int count = 0;
+        while (count < limit) {
+            int index = (int) current & mask;
+            if (published.get(index) != current) {
+                break;
+            }
+            commands[count++].copyFrom(slots[index]);
+            slots[index].clear();
+            current++;
+        }
+        head.lazySet(current);
+        return count;
+    }
+}
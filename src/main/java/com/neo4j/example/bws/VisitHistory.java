@@ -0,0 +1,221 @@
+package com.neo4j.example.bws;
+
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.Arrays;
+
+/**
+ * Reads and writes the visit history kept on VISITED relationships.
+ *
+ * Visits are minute-truncated timestamps, stored in the "visits" byte[] property as unsigned varints: the first one
+ * is the oldest visit in minutes since the epoch and every following one is the number of minutes since the visit
+ * before it. "lastVisited" holds the newest visit and "visitCount" the number of entries, so a visit newer than
+ * everything stored is appended without decoding the history, and a repeat of the newest visit is a no-op.
+ *
+ * Relationships still carrying the old "visitedList" long[] are converted the next time they are written to.
+ *
+ * RetentionService compacts visits older than its minute retention to one per day, at midnight UTC, and drops the
+ * ones past its overall retention, see compact().
+ */
+final class VisitHistory {
+
+    static final String VISITS = "visits";
+    static final String VISIT_COUNT = "visitCount";
+    static final String LAST_VISITED = "lastVisited";
+    static final String LEGACY_VISITED_LIST = "visitedList";
+
+    private static final long MINUTE = 60_000L;
+    static final long DAY = 24 * 60 * MINUTE;
+    private static final byte[] EMPTY = new byte[0];
+    // A varint of a 64 bit value, negative deltas from out of order histories take all ten bytes.
+    private static final int MAX_VARINT = 10;
+
+    // Oldest visits are dropped once a relationship holds more than this many, 0 keeps everything.
+    static final int MAX_VISITS = Integer.getInteger("bws.visits.max", 0);
+
+    /**
+     * Adds the visits to the relationship's history.
+     * @param visits minute-truncated timestamps in ascending order.
+     */
+    static void record(Relationship visited, long... visits) {
+        if (visits.length == 0) {
+            return;
+        }
+        if (visited.hasProperty(LEGACY_VISITED_LIST)) {
+            long[] legacy = (long[]) visited.removeProperty(LEGACY_VISITED_LIST);
+            write(visited, merge(sortedDistinct(legacy), visits));
+            return;
+        }
+
+        byte[] encoded = (byte[]) visited.getProperty(VISITS, EMPTY);
+        if (encoded.length == 0) {
+            write(visited, sortedDistinct(visits));
+            return;
+        }
+
+        long lastVisited = (long) visited.getProperty(LAST_VISITED);
+        if (visits[0] < lastVisited) {
+            // Late arrivals have to be merged into the middle of the history, which is rare enough to decode for.
+            write(visited, merge(decode(encoded), visits));
+            return;
+        }
+
+        int count = (int) visited.getProperty(VISIT_COUNT);
+        byte[] appended = Arrays.copyOf(encoded, encoded.length + visits.length * MAX_VARINT);
+        int length = encoded.length;
+        for (long visit : visits) {
+            if (visit != lastVisited) {
+                length = writeVarint(appended, length, (visit - lastVisited) / MINUTE);
+                lastVisited = visit;
+                count++;
+            }
+        }
+        if (MAX_VISITS > 0 && count > MAX_VISITS) {
+            write(visited, decode(Arrays.copyOf(appended, length)));
+            return;
+        }
+        if (length != encoded.length) {
+            visited.setProperty(VISITS, Arrays.copyOf(appended, length));
+            visited.setProperty(VISIT_COUNT, count);
+            visited.setProperty(LAST_VISITED, lastVisited);
+        }
+    }
+
+    /**
+     * @return the visits stored on the relationship in ascending order, in either format.
+     */
+    static long[] read(Relationship visited) {
+        if (visited.hasProperty(LEGACY_VISITED_LIST)) {
+            return sortedDistinct((long[]) visited.getProperty(LEGACY_VISITED_LIST));
+        }
+        return decode((byte[]) visited.getProperty(VISITS, EMPTY));
+    }
+
+    /**
+     * Applies a retention policy to the relationship's history, leaving it untouched if nothing changes. The
+     * relationship is write locked before it is read, so a visit a writer adds meanwhile either is read here or waits
+     * for the transaction to finish, and is never overwritten or deleted along with the relationship.
+     * @return false if no visits are left, in which case the caller should delete the relationship in the same
+     * transaction, while it still holds the lock.
+     */
+    static boolean compact(Transaction tx, Relationship visited, long minutesSince, long visitsSince) {
+        tx.acquireWriteLock(visited);
+        long[] visits = read(visited);
+        long[] retained = retain(visits, minutesSince, visitsSince);
+        if (retained.length == 0) {
+            return false;
+        }
+        if (!Arrays.equals(visits, retained) || visited.hasProperty(LEGACY_VISITED_LIST)) {
+            visited.removeProperty(LEGACY_VISITED_LIST);
+            write(visited, retained);
+        }
+        return true;
+    }
+
+    /**
+     * @param visits distinct minute-truncated timestamps in ascending order.
+     * @return the visits from visitsSince on, with the ones before minutesSince truncated to their day.
+     */
+    static long[] retain(long[] visits, long minutesSince, long visitsSince) {
+        long[] retained = new long[visits.length];
+        int count = 0;
+        for (long visit : visits) {
+            if (visit < visitsSince) {
+                continue;
+            }
+            long kept = visit < minutesSince ? visit - visit % DAY : visit;
+            if (count == 0 || retained[count - 1] != kept) {
+                retained[count++] = kept;
+            }
+        }
+        return Arrays.copyOf(retained, count);
+    }
+
+    private static void write(Relationship visited, long[] visits) {
+        if (MAX_VISITS > 0 && visits.length > MAX_VISITS) {
+            visits = Arrays.copyOfRange(visits, visits.length - MAX_VISITS, visits.length);
+        }
+        visited.setProperty(VISITS, encode(visits));
+        visited.setProperty(VISIT_COUNT, visits.length);
+        visited.setProperty(LAST_VISITED, visits[visits.length - 1]);
+    }
+
+    /**
+     * @param visits distinct minute-truncated timestamps in ascending order.
+     */
+    static byte[] encode(long[] visits) {
+        byte[] encoded = new byte[visits.length * MAX_VARINT];
+        int length = 0;
+        long previous = 0;
+        for (long visit : visits) {
+            length = writeVarint(encoded, length, (visit - previous) / MINUTE);
+            previous = visit;
+        }
+        return Arrays.copyOf(encoded, length);
+    }
+
+    static long[] decode(byte[] encoded) {
+        long[] visits = new long[encoded.length];
+        int count = 0;
+        long previous = 0;
+        int position = 0;
+        while (position < encoded.length) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = encoded[position++];
+                delta |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            previous += delta * MINUTE;
+            visits[count++] = previous;
+        }
+        return Arrays.copyOf(visits, count);
+    }
+
+    private static int writeVarint(byte[] target, int position, long value) {
+        while ((value & ~0x7fL) != 0) {
+            target[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        target[position++] = (byte) value;
+        return position;
+    }
+
+    private static long[] sortedDistinct(long[] visits) {
+        long[] sorted = visits.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (count == 0 || sorted[count - 1] != sorted[i]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+
+    /**
+     * Merges two ascending arrays, dropping duplicates.
+     */
+    static long[] merge(long[] a, long[] b) {
+        long[] merged = new long[a.length + b.length];
+        int i = 0, j = 0, count = 0;
+        while (i < a.length || j < b.length) {
+            long next;
+            if (j == b.length || (i < a.length && a[i] <= b[j])) {
+                next = a[i++];
+            } else {
+                next = b[j++];
+            }
+            if (count == 0 || merged[count - 1] != next) {
+                merged[count++] = next;
+            }
+        }
+        return Arrays.copyOf(merged, count);
+    }
+
+    private VisitHistory() {
+    }
+}
@@ -0,0 +1,397 @@
+package com.neo4j.example.bws;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the visits queued on one BatchWriterService, so they survive a restart.
+ *
+ * The journal is a sequence of memory-mapped segment files of a fixed size. Every record is addressed by its offset
+ * in the journal as a whole, and the writer checkpoints the offset up to which it has committed everything. On start
+ * up the records after the checkpoint are handed back to the writer to be applied again, some of which may have been
+ * committed already. Only writes whose BatchWriteHandler is replayable are journaled, such as visits, which are
+ * stored as a set of minutes.
+ *
+ * A record is a 16 byte header, the payload length, the record's own offset and a CRC32 of the payload, followed
+ * by the visit. Writes of other types than VISITED have their type appended, so VISITED records read the same as
+ * before types were added. Segments that are entirely before the checkpoint are renamed and reused when the journal rolls, so
+ * the offset in the header is what tells a fresh record apart from one left over from a previous use of the file.
+ *
+ * Appends happen while holding the journal's monitor, see BatchWriterService.enqueue, and are then made durable
+ * with awaitDurable, which forces the segment once for every request that is waiting at the time. Requests that
+ * append many records wait once, for the last of them.
+ */
+class VisitJournal {
+
+    private static final Logger logger = Logger.getLogger(VisitJournal.class.getName());
+
+    static final long NO_OFFSET = -1L;
+
+    private static final int HEADER = 16;
+    private static final int MIN_PAYLOAD = 8 + 2 + 2;
+    private static final int PADDING = -1;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+    private final int segmentSize;
+    private final FileChannel checkpointChannel;
+    private final ByteBuffer checkpointBuffer = ByteBuffer.allocate(8);
+    private final CRC32 crc = new CRC32();
+    private final CRC32 readCrc = new CRC32();
+
+    // Guarded by this.
+    private MappedByteBuffer segment;
+    private long segmentIndex = -1;
+    private long position;
+    private final ByteBuffer record = ByteBuffer.allocate(HEADER + MIN_PAYLOAD + 2 + 3 * 65_535);
+    private long reservedOffset = NO_OFFSET;
+
+    private volatile long checkpoint;
+    private volatile long written;
+    private volatile MappedByteBuffer current;
+
+    // Group commit: one request forces the segment while the others wait for it to finish.
+    private final Object flushLock = new Object();
+    private long durable;
+    private boolean flushing;
+
+    // Used by the writer thread only.
+    private long replayOffset;
+    private final long replayEnd;
+    private MappedByteBuffer replaySegment;
+    private long replaySegmentIndex = -1;
+
+    VisitJournal(File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        checkpointChannel = new RandomAccessFile(new File(directory, "checkpoint"), "rw").getChannel();
+        checkpointBuffer.clear();
+        checkpoint = checkpointChannel.read(checkpointBuffer, 0) == 8 ? checkpointBuffer.getLong(0) : 0L;
+
+        // Everything between the checkpoint and the first record that doesn't check out is replayed.
+        long offset = checkpoint;
+        long next;
+        while ((next = nextRecord(offset, null)) != NO_OFFSET) {
+            offset = next;
+        }
+        replayOffset = checkpoint;
+        replayEnd = offset;
+
+        synchronized (this) {
+            position = offset;
+            written = offset;
+            durable = offset;
+            mapSegment(offset / segmentSize);
+        }
+    }
+
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return the offset just past the last record appended.
+     */
+    long getWritten() {
+        return written;
+    }
+
+    boolean isReplaying() {
+        return replayOffset < replayEnd;
+    }
+
+    /**
+     * Encodes the visit and works out where it will go, without writing anything yet.
+     * Must be followed by write() or cancel() while still holding the journal's monitor.
+     * @return the offset just past the record, which is what the writer checkpoints once the visit is committed.
+     */
+    long reserve(String userId, String url, long visitedAt) {
+        return reserve(BatchWriteHandlers.VISITED, userId, url, visitedAt);
+    }
+
+    long reserve(BatchWriteHandler handler, String userId, String url, long visitedAt) {
+        assert Thread.holdsLock(this);
+        byte[] userIdBytes = userId.getBytes(StandardCharsets.UTF_8);
+        byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+        byte[] typeBytes = handler == BatchWriteHandlers.VISITED ? null : handler.type().getBytes(StandardCharsets.UTF_8);
+        if (userIdBytes.length > 65_535 || urlBytes.length > 65_535 || (typeBytes != null && typeBytes.length > 65_535)) {
+            throw new IllegalArgumentException("userId, url and type must be under 64KB to be journaled");
+        }
+        record.clear();
+        record.position(HEADER);
+        record.putLong(visitedAt);
+        record.putShort((short) userIdBytes.length);
+        record.put(userIdBytes);
+        record.putShort((short) urlBytes.length);
+        record.put(urlBytes);
+        if (typeBytes != null) {
+            record.putShort((short) typeBytes.length);
+            record.put(typeBytes);
+        }
+        int length = record.position() - HEADER;
+
+        long start = position;
+        if (segmentSize - (int) (start % segmentSize) < HEADER + length) {
+            start = (start / segmentSize + 1) * segmentSize;
+        }
+        crc.reset();
+        crc.update(record.array(), HEADER, length);
+        record.putInt(0, length);
+        record.putLong(4, start);
+        record.putInt(12, (int) crc.getValue());
+        record.flip();
+
+        reservedOffset = start + HEADER + length;
+        return reservedOffset;
+    }
+
+    /**
+     * Appends the record prepared by reserve().
+     */
+    void write() throws IOException {
+        assert Thread.holdsLock(this);
+        long start = reservedOffset - record.remaining();
+        if (start / segmentSize != segmentIndex) {
+            int at = (int) (position % segmentSize);
+            if (position / segmentSize == segmentIndex && segmentSize - at >= HEADER) {
+                segment.putInt(at, PADDING);
+                segment.putLong(at + 4, position);
+            }
+            // Whatever was written to the old segment has to be durable before anyone waits on the new one.
+            segment.force();
+            mapSegment(start / segmentSize);
+        }
+        ByteBuffer target = segment.duplicate();
+        target.position((int) (start % segmentSize));
+        target.put(record);
+        position = reservedOffset;
+        written = reservedOffset;
+        reservedOffset = NO_OFFSET;
+    }
+
+    void cancel() {
+        reservedOffset = NO_OFFSET;
+    }
+
+    /**
+     * Blocks until the record ending at offset has been forced to disk. Requests arriving while a force is running
+     * wait for it and are then covered by the next one together.
+     */
+    void awaitDurable(long offset) throws InterruptedException {
+        long target;
+        MappedByteBuffer toForce;
+        synchronized (flushLock) {
+            while (durable < offset && flushing) {
+                flushLock.wait();
+            }
+            if (durable >= offset) {
+                return;
+            }
+            flushing = true;
+            // Read written before current, a roll in between has already forced the older segment.
+            target = written;
+            toForce = current;
+        }
+        boolean forced = false;
+        try {
+            toForce.force();
+            forced = true;
+        } finally {
+            synchronized (flushLock) {
+                if (forced) {
+                    durable = Math.max(durable, target);
+                }
+                flushing = false;
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Records that every visit up to offset has been committed, so it won't be replayed.
+     */
+    void checkpoint(long offset) throws IOException {
+        if (offset <= checkpoint) {
+            return;
+        }
+        checkpoint = offset;
+        checkpointBuffer.clear();
+        checkpointBuffer.putLong(0, offset);
+        checkpointChannel.write(checkpointBuffer, 0);
+    }
+
+    /**
+     * Reads up to max records from the last checkpoint into the commands, for the writer to apply again.
+     * @return the number of commands read, 0 once the replay is done.
+     */
+    int replay(VisitCommand[] commands, int max) throws IOException {
+        int count = 0;
+        int limit = Math.min(max, commands.length);
+        while (count < limit && replayOffset < replayEnd) {
+            long next = nextRecord(replayOffset, commands[count]);
+            if (next == NO_OFFSET) {
+                replayOffset = replayEnd;
+                break;
+            }
+            if (commands[count].userId != null) {
+                commands[count].journalOffset = next;
+                count++;
+            }
+            replayOffset = next;
+        }
+        if (!isReplaying()) {
+            replaySegment = null;
+            replaySegmentIndex = -1;
+        }
+        return count;
+    }
+
+    /**
+     * Checks the record at offset and optionally reads it into the command, which is left without a userId for
+     * padding and for writes of a type that is no longer registered.
+     * @return the offset of the following record, or NO_OFFSET if there is no valid record at offset.
+     */
+    private long nextRecord(long offset, VisitCommand into) throws IOException {
+        int at = (int) (offset % segmentSize);
+        if (segmentSize - at < HEADER) {
+            return nextRecord(nextSegment(offset), into);
+        }
+        MappedByteBuffer buffer = readSegment(offset / segmentSize);
+        if (buffer == null) {
+            return NO_OFFSET;
+        }
+        int length = buffer.getInt(at);
+        if (buffer.getLong(at + 4) != offset) {
+            return NO_OFFSET;
+        }
+        if (length == PADDING) {
+            if (into != null) {
+                into.userId = null;
+            }
+            return nextSegment(offset);
+        }
+        if (length < MIN_PAYLOAD || length > segmentSize - at - HEADER) {
+            return NO_OFFSET;
+        }
+        byte[] payload = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(at + HEADER);
+        source.get(payload);
+        readCrc.reset();
+        readCrc.update(payload, 0, length);
+        if (buffer.getInt(at + 12) != (int) readCrc.getValue()) {
+            return NO_OFFSET;
+        }
+        if (into != null) {
+            ByteBuffer visit = ByteBuffer.wrap(payload);
+            long visitedAt = visit.getLong();
+            String userId = readString(visit);
+            String url = readString(visit);
+            BatchWriteHandler handler = BatchWriteHandlers.VISITED;
+            if (visit.hasRemaining()) {
+                String type = readString(visit);
+                handler = BatchWriteHandlers.forType(type);
+                if (handler == null) {
+                    logger.severe("Skipping a journaled " + type + " write at offset " + offset + ", no handler is registered for it");
+                    into.userId = null;
+                    return offset + HEADER + length;
+                }
+            }
+            into.set(handler, userId, url, VisitCommand.NO_ID, VisitCommand.NO_ID, visitedAt, VisitJournal.NO_OFFSET);
+        }
+        return offset + HEADER + length;
+    }
+
+    private static String readString(ByteBuffer visit) {
+        int length = visit.getShort() & 0xffff;
+        String value = new String(visit.array(), visit.position(), length, StandardCharsets.UTF_8);
+        visit.position(visit.position() + length);
+        return value;
+    }
+
+    private long nextSegment(long offset) {
+        return (offset / segmentSize + 1) * segmentSize;
+    }
+
+    private MappedByteBuffer readSegment(long index) throws IOException {
+        if (index != replaySegmentIndex) {
+            File file = segmentFile(index);
+            if (!file.exists()) {
+                return null;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                replaySegment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segmentSize);
+            }
+            replaySegmentIndex = index;
+        }
+        return replaySegment;
+    }
+
+    /**
+     * Maps the segment for writing, reusing the oldest segment file that is entirely before the checkpoint.
+     */
+    private void mapSegment(long index) throws IOException {
+        File file = segmentFile(index);
+        if (!file.exists()) {
+            File recycled = oldestConsumedSegment();
+            if (recycled != null && !recycled.renameTo(file)) {
+                throw new IOException("Could not recycle journal segment " + recycled + " as " + file);
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentSize);
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        segmentIndex = index;
+        current = segment;
+    }
+
+    private File oldestConsumedSegment() {
+        File oldest = null;
+        long oldestIndex = Long.MAX_VALUE;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return null;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            long index;
+            try {
+                index = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if ((index + 1) * segmentSize <= checkpoint && index < oldestIndex) {
+                oldest = file;
+                oldestIndex = index;
+            }
+        }
+        return oldest;
+    }
+
+    private File segmentFile(long index) {
+        return new File(directory, SEGMENT_PREFIX + index + SEGMENT_SUFFIX);
+    }
+
+    void close() throws IOException {
+        synchronized (this) {
+            segment.force();
+        }
+        checkpointChannel.close();
+    }
+}
@@ -0,0 +1,277 @@
+package com.neo4j.example.bws;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming summaries of the committed visits over the last bws.summary.minutes minutes, kept by the writers so
+ * dashboards can ask for the busiest sites and the number of active users without scanning the graph.
+ *
+ * Every minute has its own bucket with a count-min sketch of visits by url, the urls most likely to be among the
+ * busiest that minute, and a HyperLogLog of the userIds. A window of minutes adds up the sketches, estimates every
+ * candidate url against the sum and merges the HyperLogLog registers, so answering costs the same however many
+ * visits there were. Counts can only be overestimated, by at most 0.13% of the window's visits with 98% certainty,
+ * and the active user count is within about 1.6% either way.
+ *
+ * Visits are counted once per user, site and minute, the same way VISITED relationships store them.
+ */
+final class VisitSummaries {
+
+    static final int MINUTES = Integer.getInteger("bws.summary.minutes", 60);
+    static final int CANDIDATES = Integer.getInteger("bws.summary.candidates", 100);
+
+    static final VisitSummaries INSTANCE = new VisitSummaries(MINUTES, CANDIDATES);
+
+    private static final long MINUTE = 60_000L;
+
+    private final Bucket[] buckets;
+    private final int candidates;
+
+    VisitSummaries(int minutes, int candidates) {
+        buckets = new Bucket[Math.max(1, minutes)];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.candidates = candidates;
+    }
+
+    int getMinutes() {
+        return buckets.length;
+    }
+
+    /**
+     * Counts the committed visits of a coalesced write, each of its minutes once.
+     */
+    void record(String userId, String url, long[] visits) {
+        long now = NeoService.currentMinute();
+        for (long visit : visits) {
+            record(userId, url, visit, now);
+        }
+    }
+
+    void record(String userId, String url, long minute, long now) {
+        // Visits from before the window, from replays or bulk loads, are not counted, nor are ones from the future.
+        if (minute > now || now - minute >= buckets.length * MINUTE) {
+            return;
+        }
+        Bucket bucket = bucketFor(minute);
+        synchronized (bucket) {
+            if (bucket.minute != minute) {
+                if (bucket.minute > minute) {
+                    return;
+                }
+                bucket.reset(minute);
+            }
+            bucket.add(userId, url, candidates);
+        }
+    }
+
+    /**
+     * @return up to n urls with the most visits in the last minutes, busiest first, as url and visits entries.
+     */
+    List<Map<String, Object>> topSites(int minutes, int n, long now) {
+        CountMinSketch total = new CountMinSketch();
+        HashSet<String> candidateUrls = new HashSet<>();
+        for (int i = 0; i < Math.min(minutes, buckets.length); i++) {
+            long minute = now - i * MINUTE;
+            Bucket bucket = bucketFor(minute);
+            synchronized (bucket) {
+                // A bucket that wasn't written to in its minute still holds an older one.
+                if (bucket.minute == minute) {
+                    total.add(bucket.sketch);
+                    candidateUrls.addAll(bucket.candidates.keySet());
+                }
+            }
+        }
+
+        ArrayList<Map.Entry<String, Long>> estimates = new ArrayList<>();
+        for (String url : candidateUrls) {
+            estimates.add(new AbstractMap.SimpleEntry<>(url, total.estimate(url)));
+        }
+        Collections.sort(estimates, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return Long.compare(b.getValue(), a.getValue());
+            }
+        });
+
+        ArrayList<Map<String, Object>> top = new ArrayList<>();
+        for (Map.Entry<String, Long> estimate : estimates.subList(0, Math.min(n, estimates.size()))) {
+            LinkedHashMap<String, Object> site = new LinkedHashMap<>();
+            site.put("url", estimate.getKey());
+            site.put("visits", estimate.getValue());
+            top.add(site);
+        }
+        return top;
+    }
+
+    /**
+     * @return the estimated number of distinct users with a visit in the last minutes.
+     */
+    long activeUsers(int minutes, long now) {
+        HyperLogLog union = new HyperLogLog();
+        for (int i = 0; i < Math.min(minutes, buckets.length); i++) {
+            long minute = now - i * MINUTE;
+            Bucket bucket = bucketFor(minute);
+            synchronized (bucket) {
+                if (bucket.minute == minute) {
+                    union.add(bucket.users);
+                }
+            }
+        }
+        return union.estimate();
+    }
+
+    private Bucket bucketFor(long minute) {
+        return buckets[(int) ((minute / MINUTE) % buckets.length)];
+    }
+
+    private static final class Bucket {
+        long minute = -1;
+        final CountMinSketch sketch = new CountMinSketch();
+        final HashMap<String, Long> candidates = new HashMap<>();
+        // The smallest estimate among the candidates, a url has to beat it to become one once they are full.
+        long candidatesMin;
+        final HyperLogLog users = new HyperLogLog();
+
+        void reset(long minute) {
+            this.minute = minute;
+            sketch.clear();
+            candidates.clear();
+            candidatesMin = 0;
+            users.clear();
+        }
+
+        void add(String userId, String url, int maxCandidates) {
+            users.add(OffHeapIdentityCache.hash(userId));
+            long estimate = sketch.add(url);
+            if (candidates.containsKey(url)) {
+                // candidatesMin may now be too low, which only costs an extra look for the smallest one below.
+                candidates.put(url, estimate);
+                return;
+            }
+            if (candidates.size() < maxCandidates) {
+                candidates.put(url, estimate);
+                if (candidates.size() == maxCandidates) {
+                    candidatesMin = Collections.min(candidates.values());
+                }
+                return;
+            }
+            if (estimate <= candidatesMin) {
+                return;
+            }
+            Map.Entry<String, Long> smallest = null;
+            for (Map.Entry<String, Long> candidate : candidates.entrySet()) {
+                if (smallest == null || candidate.getValue() < smallest.getValue()) {
+                    smallest = candidate;
+                }
+            }
+            candidatesMin = smallest.getValue();
+            if (estimate > candidatesMin) {
+                candidates.remove(smallest.getKey());
+                candidates.put(url, estimate);
+                candidatesMin = Collections.min(candidates.values());
+            }
+        }
+    }
+
+    /**
+     * 4 rows of 2,048 counters, an estimate is the smallest of the key's counter in each row.
+     */
+    static final class CountMinSketch {
+        private static final int DEPTH = 4;
+        private static final int WIDTH = 2_048;
+
+        private final long[] counters = new long[DEPTH * WIDTH];
+
+        long add(String key) {
+            long hash = OffHeapIdentityCache.hash(key);
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                int at = row * WIDTH + column(hash, row);
+                estimate = Math.min(estimate, ++counters[at]);
+            }
+            return estimate;
+        }
+
+        long estimate(String key) {
+            long hash = OffHeapIdentityCache.hash(key);
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                estimate = Math.min(estimate, counters[row * WIDTH + column(hash, row)]);
+            }
+            return estimate;
+        }
+
+        void add(CountMinSketch other) {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] += other.counters[i];
+            }
+        }
+
+        void clear() {
+            Arrays.fill(counters, 0);
+        }
+
+        private static int column(long hash, int row) {
+            int first = (int) hash;
+            int second = (int) (hash >>> 32);
+            return ((first + row * second) & Integer.MAX_VALUE) % WIDTH;
+        }
+    }
+
+    /**
+     * 4,096 six bit registers, one byte each.
+     */
+    static final class HyperLogLog {
+        private static final int P = 12;
+        private static final int REGISTERS = 1 << P;
+        private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+        private final byte[] registers = new byte[REGISTERS];
+
+        void add(long hash) {
+            int register = (int) (hash >>> (64 - P));
+            // The guard bit caps the rank at 64 - P + 1 when the remaining bits are all zero.
+            byte rank = (byte) (Long.numberOfLeadingZeros((hash << P) | (1L << (P - 1))) + 1);
+            if (rank > registers[register]) {
+                registers[register] = rank;
+            }
+        }
+
+        void add(HyperLogLog other) {
+            for (int i = 0; i < REGISTERS; i++) {
+                registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+            }
+        }
+
+        long estimate() {
+            double sum = 0;
+            int zeros = 0;
+            for (byte register : registers) {
+                sum += 1.0 / (1L << register);
+                if (register == 0) {
+                    zeros++;
+                }
+            }
+            double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+            // Linear counting is more accurate while many registers are still empty.
+            if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+                estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+            }
+            return Math.round(estimate);
+        }
+
+        void clear() {
+            Arrays.fill(registers, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.neo4j.example.bws;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * A User VISITED a Site, at minute resolution. The visits are kept as a VisitHistory on the relationship, and once
+ * committed are added to the user's RecentVisits and counted in the VisitSummaries.
+ */
+final class VisitedHandler extends BatchWriteHandler {
+
+    static final String TYPE = "visited";
+
+    VisitedHandler() {
+        super(TYPE, NodeKey.USER, NodeKey.SITE);
+    }
+
+    @Override
+    public boolean replayable() {
+        return true;
+    }
+
+    @Override
+    public void apply(Node userNode, Node siteNode, long[] visits) {
+        NeoService.CreateVisitedRelationship(userNode, siteNode, visits);
+    }
+
+    // Before the request is released, so a visit answered with a 201 is read back by the next getVisited.
+    @Override
+    void visible(String userId, String url, long userNodeId, long siteNodeId, long[] visits) {
+        RecentVisits.visited(userNodeId, siteNodeId, visits[visits.length - 1]);
+    }
+
+    @Override
+    public void committed(String userId, String url, long userNodeId, long siteNodeId, long[] visits) {
+        VisitSummaries.INSTANCE.record(userId, url, visits);
+    }
+}
@@ -0,0 +1,90 @@
+package com.neo4j.example.bws;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * Finds the VISITED relationship between a user and a site.
+ *
+ * Relationship ids are cached by (user node id, site node id), and the writers put every relationship they find or
+ * create, so repeat visits don't touch the relationship chains at all. On a miss only the side with the fewer VISITED
+ * relationships is walked. Dense nodes answer getDegree from their relationship groups, and the others are below
+ * the dense node threshold, so checking the degrees costs little next to walking a power user's history.
+ */
+final class VisitedRelationships {
+
+    static final OffHeapIdentityCache cache =
+            new OffHeapIdentityCache(Long.getLong("bws.cache.visited", 1_000_000L));
+
+    /**
+     * @return the VISITED relationship from the user to the site, or null if there is none.
+     * Must be called inside a transaction.
+     */
+    static Relationship find(Node userNode, Node siteNode) {
+        long hash = OffHeapIdentityCache.hash(userNode.getId(), siteNode.getId());
+        Relationship visited = cached(userNode, siteNode, hash);
+        if (visited != null) {
+            return visited;
+        }
+
+        if (userNode.getDegree(Relationships.VISITED, Direction.OUTGOING) <= siteNode.getDegree(Relationships.VISITED, Direction.INCOMING)) {
+            for (Relationship relationship : userNode.getRelationships(Direction.OUTGOING, Relationships.VISITED)) {
+                if (relationship.getEndNode().equals(siteNode)) {
+                    visited = relationship;
+                    break;
+                }
+            }
+        } else {
+            for (Relationship relationship : siteNode.getRelationships(Direction.INCOMING, Relationships.VISITED)) {
+                if (relationship.getStartNode().equals(userNode)) {
+                    visited = relationship;
+                    break;
+                }
+            }
+        }
+
+        if (visited != null) {
+            cache.put(hash, visited.getId());
+        }
+        return visited;
+    }
+
+    /**
+     * Finds the VISITED relationship from the user to the site, creating it if it doesn't exist yet.
+     */
+    static Relationship getOrCreate(Node userNode, Node siteNode) {
+        Relationship visited = find(userNode, siteNode);
+        if (visited == null) {
+            visited = userNode.createRelationshipTo(siteNode, Relationships.VISITED);
+            // If the transaction rolls back the id is left dangling, the check in cached() takes care of that.
+            cache.put(OffHeapIdentityCache.hash(userNode.getId(), siteNode.getId()), visited.getId());
+        }
+        return visited;
+    }
+
+    /**
+     * Only hashes are cached, so a hit is checked against the nodes before it is trusted.
+     */
+    private static Relationship cached(Node userNode, Node siteNode, long hash) {
+        long relationshipId = cache.getIfPresent(hash);
+        if (relationshipId == IdentityCache.NO_ID) {
+            return null;
+        }
+        try {
+            Relationship relationship = userNode.getGraphDatabase().getRelationshipById(relationshipId);
+            if (relationship.isType(Relationships.VISITED) && relationship.getStartNode().equals(userNode)
+                    && relationship.getEndNode().equals(siteNode)) {
+                return relationship;
+            }
+        } catch (NotFoundException e) {
+            // The relationship was deleted or never committed, fall through and drop the stale entry.
+        }
+        cache.invalidate(hash);
+        return null;
+    }
+
+    private VisitedRelationships() {
+    }
+}
@@ -0,0 +1,290 @@
+package com.neo4j.example.bws;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.IdGeneratorFactory;
+import org.neo4j.kernel.IdType;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Warms up the caches in the background, splitting the node and relationship id ranges into chunks that a pool of
+ * threads reads in a transaction each.
+ *
+ * The newest relationships go first, and the users and sites at their ends are cached straight away, so recently
+ * active users are served from the cache within seconds. Then come all the nodes and finally the rest of the
+ * relationships.
+ *
+ * The newest relationships are only an approximation of the recently active users: a VISITED relationship gets its
+ * id when a user first visits a site, so a user who only went back to sites they had visited before is not among
+ * them. When the user cache was restored from a snapshot, see IdentityCacheSnapshots, it already holds the users
+ * that were active before the restart, and the newest relationships are not given priority.
+ *
+ * A cancelled job remembers the chunks it finished, and starting it again picks up from there. So does a failed
+ * one, which is what a job becomes once its chunks have ended with some of them failing.
+ */
+class WarmupJob {
+
+    enum State { RUNNING, CANCELLED, FAILED, DONE }
+
+    private static final Logger logger = Logger.getLogger(WarmupJob.class.getName());
+
+    static final int CHUNK_SIZE = Integer.getInteger("bws.warmup.chunkSize", 100_000);
+    static final int THREADS = Integer.getInteger("bws.warmup.threads", Runtime.getRuntime().availableProcessors());
+    static final long RECENT_RELATIONSHIPS = Long.getLong("bws.warmup.recentRelationships", 1_000_000L);
+
+    // Guarded by WarmupJob.class.
+    private static WarmupJob current;
+
+    private final GraphDatabaseService db;
+    private final List<Chunk> chunks;
+    // Guarded by this.
+    private final BitSet done = new BitSet();
+    private ExecutorService executor;
+    private long activeNanos;
+    private long runStartedAt;
+    private int doneAtRunStart;
+    private int runs;
+    private int pendingChunks;
+    private int failedChunks;
+
+    private volatile State state = State.CANCELLED;
+    private final AtomicLong nodes = new AtomicLong();
+    private final AtomicLong relationships = new AtomicLong();
+
+    private WarmupJob(GraphDatabaseService db) {
+        this.db = db;
+        IdGeneratorFactory ids = ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(IdGeneratorFactory.class);
+        chunks = chunks(ids.get(IdType.NODE).getHighId(), ids.get(IdType.RELATIONSHIP).getHighId(),
+                IdentityCacheSnapshots.usersRestored() ? 0 : RECENT_RELATIONSHIPS);
+    }
+
+    /**
+     * Starts a warmup of the database, or resumes the current one if it was cancelled.
+     */
+    static synchronized WarmupJob start(GraphDatabaseService db) {
+        if (current == null || current.db != db || current.state == State.DONE) {
+            current = new WarmupJob(db);
+        }
+        current.run();
+        return current;
+    }
+
+    static synchronized WarmupJob current() {
+        return current;
+    }
+
+    /**
+     * The newest recentRelationships relationships in chunks first, then nodes, then the remaining relationships.
+     */
+    static List<Chunk> chunks(long highNodeId, long highRelationshipId, long recentRelationships) {
+        ArrayList<Chunk> chunks = new ArrayList<>();
+        long recentFrom = Math.max(0, highRelationshipId - recentRelationships);
+        for (long end = highRelationshipId; end > recentFrom; end -= CHUNK_SIZE) {
+            chunks.add(new Chunk(Chunk.Kind.RECENT_RELATIONSHIPS, Math.max(recentFrom, end - CHUNK_SIZE), end));
+        }
+        for (long start = 0; start < highNodeId; start += CHUNK_SIZE) {
+            chunks.add(new Chunk(Chunk.Kind.NODES, start, Math.min(highNodeId, start + CHUNK_SIZE)));
+        }
+        for (long start = 0; start < recentFrom; start += CHUNK_SIZE) {
+            chunks.add(new Chunk(Chunk.Kind.RELATIONSHIPS, start, Math.min(recentFrom, start + CHUNK_SIZE)));
+        }
+        return chunks;
+    }
+
+    private synchronized void run() {
+        if (state == State.RUNNING) {
+            return;
+        }
+        state = State.RUNNING;
+        runStartedAt = System.nanoTime();
+        doneAtRunStart = done.cardinality();
+        if (doneAtRunStart == chunks.size()) {
+            finish();
+            return;
+        }
+        final int run = ++runs;
+        failedChunks = 0;
+        pendingChunks = chunks.size() - doneAtRunStart;
+        executor = Executors.newFixedThreadPool(Math.max(1, THREADS),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("bws-warmup-%d").build());
+        for (int i = done.nextClearBit(0); i < chunks.size(); i = done.nextClearBit(i + 1)) {
+            final int index = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean failed = false;
+                    try {
+                        if (warm(chunks.get(index))) {
+                            chunkDone(index);
+                        }
+                    } catch (RuntimeException e) {
+                        failed = true;
+                        logger.severe("Error warming up " + chunks.get(index) + ": " + e);
+                    } finally {
+                        chunkEnded(run, failed);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        logger.info("Warming up " + (chunks.size() - doneAtRunStart) + " chunks of " + CHUNK_SIZE + " ids on " + THREADS + " threads");
+    }
+
+    private synchronized void chunkDone(int index) {
+        done.set(index);
+        if (done.cardinality() == chunks.size() && state == State.RUNNING) {
+            finish();
+        }
+    }
+
+    private synchronized void chunkEnded(int run, boolean failed) {
+        // Chunks of a cancelled run can still be ending after the job was started again.
+        if (run != runs) {
+            return;
+        }
+        if (failed) {
+            failedChunks++;
+        }
+        if (--pendingChunks == 0 && state == State.RUNNING && failedChunks > 0) {
+            activeNanos += System.nanoTime() - runStartedAt;
+            state = State.FAILED;
+            logger.warning("Warm up failed for " + failedChunks + " chunks, starting it again retries them");
+        }
+    }
+
+    private void finish() {
+        activeNanos += System.nanoTime() - runStartedAt;
+        state = State.DONE;
+        // Every node below the high id at the start has been put, and the ones created since were put as they were.
+        NeoService.userFilter.complete(db, Labels.User, "userId");
+        NeoService.siteFilter.complete(db, Labels.Site, "url");
+        logger.info("Warmed up " + nodes.get() + " nodes and " + relationships.get() + " relationships in " +
+                TimeUnit.NANOSECONDS.toSeconds(activeNanos) + " seconds");
+    }
+
+    synchronized void cancel() {
+        if (state != State.RUNNING) {
+            return;
+        }
+        activeNanos += System.nanoTime() - runStartedAt;
+        state = State.CANCELLED;
+        executor.shutdownNow();
+    }
+
+    /**
+     * Waits for the chunks of the current run to finish, whether the job completes or is cancelled.
+     */
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        ExecutorService running;
+        synchronized (this) {
+            running = executor;
+        }
+        return running == null || running.awaitTermination(timeout, unit);
+    }
+
+    State getState() {
+        return state;
+    }
+
+    /**
+     * @return false if the job was cancelled before it got through the chunk.
+     */
+    private boolean warm(Chunk chunk) {
+        try (Transaction tx = db.beginTx()) {
+            for (long id = chunk.start; id < chunk.end; id++) {
+                if (state != State.RUNNING) {
+                    return false;
+                }
+                try {
+                    if (chunk.kind == Chunk.Kind.NODES) {
+                        warmNode(db.getNodeById(id));
+                    } else {
+                        warmRelationship(db.getRelationshipById(id), chunk.kind == Chunk.Kind.RECENT_RELATIONSHIPS);
+                    }
+                } catch (NotFoundException e) {
+                    // Ids of deleted entities are simply skipped.
+                }
+            }
+            tx.success();
+        }
+        return true;
+    }
+
+    private void warmNode(Node node) {
+        node.getPropertyKeys();
+        if (node.hasLabel(Labels.Site)) {
+            String url = (String) node.getProperty("url");
+            NeoService.siteCache.put(url, node.getId());
+            NeoService.siteFilter.put(url);
+        } else if (node.hasLabel(Labels.User)) {
+            String userId = (String) node.getProperty("userId");
+            NeoService.userCache.put(userId, node.getId());
+            NeoService.userFilter.put(userId);
+        }
+        nodes.incrementAndGet();
+    }
+
+    private void warmRelationship(Relationship relationship, boolean recent) {
+        relationship.getPropertyKeys();
+        Node[] ends = relationship.getNodes();
+        if (recent && relationship.isType(Relationships.VISITED)) {
+            warmNode(ends[0]);
+            warmNode(ends[1]);
+            VisitedRelationships.cache.put(OffHeapIdentityCache.hash(ends[0].getId(), ends[1].getId()), relationship.getId());
+        }
+        relationships.incrementAndGet();
+    }
+
+    synchronized Map<String, Object> status() {
+        LinkedHashMap<String, Object> status = new LinkedHashMap<>();
+        int completed = done.cardinality();
+        long active = activeNanos + (state == State.RUNNING ? System.nanoTime() - runStartedAt : 0);
+        status.put("state", state.name());
+        status.put("chunksDone", completed);
+        status.put("chunks", chunks.size());
+        status.put("chunksFailed", failedChunks);
+        status.put("nodes", nodes.get());
+        status.put("relationships", relationships.get());
+        status.put("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(active));
+        int completedThisRun = completed - doneAtRunStart;
+        if (state == State.RUNNING && completedThisRun > 0) {
+            long perChunk = (System.nanoTime() - runStartedAt) / completedThisRun;
+            status.put("etaMillis", TimeUnit.NANOSECONDS.toMillis(perChunk * (chunks.size() - completed)));
+        }
+        return status;
+    }
+
+    static final class Chunk {
+        enum Kind { RECENT_RELATIONSHIPS, NODES, RELATIONSHIPS }
+
+        final Kind kind;
+        final long start;
+        final long end;
+
+        Chunk(Kind kind, long start, long end) {
+            this.kind = kind;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " [" + start + ", " + end + ")";
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.neo4j.example.bws;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.TransactionFailureException;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchWriterServiceTest {
+
+    @Test
+    public void shouldCoalesceDuplicateWrites() {
+        VisitCommand[] commands = commands(
+                command("1234", "http://www.neo4j.org", VisitCommand.NO_ID, 60_000L),
+                command("1234", "http://www.neo4j.org", VisitCommand.NO_ID, 60_000L),
+                command("1234", "http://www.neo4j.org", VisitCommand.NO_ID, 120_000L),
+                command("5678", "http://www.neo4j.org", VisitCommand.NO_ID, 60_000L));
+
+        int count = BatchWriterService.coalesce(commands, commands.length, new int[8]);
+
+        assertEquals(2, count);
+        assertEquals("1234", commands[0].userId);
+        assertArrayEquals(new long[]{60_000L, 120_000L}, commands[0].getVisits());
+        assertEquals("5678", commands[1].userId);
+    }
+
+    @Test
+    public void shouldKeepResolvedNodeIdsWhenCoalescing() {
+        VisitCommand[] commands = commands(
+                command("1234", "http://www.neo4j.org", VisitCommand.NO_ID, 60_000L),
+                command("1234", "http://www.neo4j.org", 1L, 60_000L));
+
+        BatchWriterService.coalesce(commands, commands.length, new int[4]);
+
+        assertEquals(1L, commands[0].userNodeId);
+        assertEquals(VisitCommand.NO_ID, commands[0].siteNodeId);
+    }
+
+    @Test
+    public void shouldOnlyCoalesceWritesOfTheSameType() {
+        BatchWriteHandler liked = new BatchWriteHandler("liked", NodeKey.USER, NodeKey.SITE) {
+            @Override
+            public void apply(Node from, Node to, long[] times) {
+            }
+        };
+        VisitCommand[] commands = commands(
+                command("1234", "http://www.neo4j.org", VisitCommand.NO_ID, 60_000L),
+                command("1234", "http://www.neo4j.org", VisitCommand.NO_ID, 120_000L));
+        commands[1].handler = liked;
+
+        assertEquals(2, BatchWriterService.coalesce(commands, commands.length, new int[4]));
+    }
+
+    @Test
+    public void shouldCompleteTheFuturesOfCoalescedWrites() throws InterruptedException {
+        SettableFuture<Void> first = SettableFuture.create();
+        SettableFuture<Void> second = SettableFuture.create();
+        VisitCommand[] commands = commands(
+                command("1234", "http://www.neo4j.org", VisitCommand.NO_ID, 60_000L),
+                command("1234", "http://www.neo4j.org", VisitCommand.NO_ID, 60_000L),
+                command("1234", "http://www.neo4j.org", VisitCommand.NO_ID, 120_000L));
+        commands[0].committed = first;
+        commands[2].committed = second;
+
+        assertEquals(1, BatchWriterService.coalesce(commands, commands.length, new int[4]));
+        assertFalse(first.isDone());
+        commands[0].complete(new NotFoundException("Node 1234 not found"));
+
+        assertFailed(first);
+        assertFailed(second);
+    }
+
+    @Test
+    public void shouldRejectWhenRingBufferIsFull() {
+        VisitCommandRingBuffer ring = new VisitCommandRingBuffer(4);
+        for (int i = 0; i < ring.capacity(); i++) {
+            assertTrue(ring.offer("1234", "http://www.neo4j.org", 1L, 2L, i));
+        }
+        assertFalse(ring.offer("1234", "http://www.neo4j.org", 1L, 2L, 99L));
+
+        VisitCommand[] drained = commands(new VisitCommand(), new VisitCommand(), new VisitCommand(), new VisitCommand());
+        assertEquals(4, ring.drainTo(drained, drained.length));
+        assertEquals(3L, drained[3].visitedAt);
+        assertTrue(ring.offer("1234", "http://www.neo4j.org", 1L, 2L, 99L));
+    }
+
+    @Test
+    public void shouldTuneCommitSizeTowardTargetLatency() {
+        // 1,000 writes in 100ms against a 50ms target should shrink the commit, 1,000 writes in 10ms should grow it.
+        assertEquals(875, BatchWriterService.tuneCommitSize(1_000, 1_000, 100_000_000L, 50_000_000L, 100, 10_000));
+        assertEquals(2_000, BatchWriterService.tuneCommitSize(1_000, 1_000, 10_000_000L, 50_000_000L, 100, 10_000));
+        // Partial commits don't say much about the cost of a full one.
+        assertEquals(1_000, BatchWriterService.tuneCommitSize(1_000, 10, 1_000_000L, 50_000_000L, 100, 10_000));
+    }
+
+    @Test
+    public void shouldRouteUsersToStableShards() {
+        int[] counts = new int[4];
+        for (int i = 0; i < 10_000; i++) {
+            int shard = BatchWriterPool.shardFor(String.valueOf(i), counts.length);
+            assertEquals(shard, BatchWriterPool.shardFor(String.valueOf(i), counts.length));
+            counts[shard]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 2_000);
+        }
+    }
+
+    @Test
+    public void shouldOnlyRetryDeadlocks() {
+        assertTrue(BatchWriterService.isDeadlock(new TransactionFailureException("commit failed", new DeadlockDetectedException("deadlock"))));
+        assertFalse(BatchWriterService.isDeadlock(new NotFoundException("Node 1234 not found")));
+    }
+
+    @Test
+    public void shouldCreateEachNewNodeOfABatchOnce() throws Exception {
+        GraphDatabaseService db = databaseWithConstraints();
+        try {
+            NodeKey readers = new NodeKey(READER, "name", 100);
+            NodeKey pages = new NodeKey(PAGE, "url", 100);
+            BatchWriterService writer = writerFor(db);
+            BatchWriteHandler read = readHandler(readers, pages);
+            // Repeated new readers and pages in one batch, not coalesced so each write resolves its nodes again.
+            String[][] writes = {{"alice", "/a"}, {"alice", "/b"}, {"bob", "/a"}, {"alice", "/a"}, {"bob", "/b"}};
+            for (String[] write : writes) {
+                assertTrue(writer.queue.offer(read, write[0], write[1], VisitCommand.NO_ID, VisitCommand.NO_ID, 60_000L, VisitJournal.NO_OFFSET));
+            }
+
+            writer.runOneIteration();
+
+            try (Transaction tx = db.beginTx()) {
+                assertEquals(2, count(db, READER));
+                assertEquals(2, count(db, PAGE));
+                assertCached(db, readers, "alice", "bob");
+                assertCached(db, pages, "/a", "/b");
+                int relationships = 0;
+                for (Node reader : GlobalGraphOperations.at(db).getAllNodesWithLabel(READER)) {
+                    relationships += reader.getDegree(READ, Direction.OUTGOING);
+                }
+                assertEquals(writes.length, relationships);
+                tx.success();
+            }
+        } finally {
+            db.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldOnlyCacheNodesFromCommittedResolves() throws Exception {
+        GraphDatabaseService db = databaseWithConstraints();
+        try {
+            NodeKey readers = new NodeKey(READER, "name", 100);
+            NodeKey pages = new NodeKey(PAGE, "url", 100);
+            // A page created behind the filter's back, which the writer will try to create again.
+            try (Transaction tx = db.beginTx()) {
+                db.createNode(PAGE).setProperty("url", "/elsewhere");
+                tx.success();
+            }
+            pages.filter().complete();
+            BatchWriterService writer = writerFor(db);
+            BatchWriteHandler read = readHandler(readers, pages);
+            assertTrue(writer.queue.offer(read, "alice", "/a", VisitCommand.NO_ID, VisitCommand.NO_ID, 60_000L, VisitJournal.NO_OFFSET));
+            assertTrue(writer.queue.offer(read, "alice", "/elsewhere", VisitCommand.NO_ID, VisitCommand.NO_ID, 60_000L, VisitJournal.NO_OFFSET));
+
+            writer.runOneIteration();
+
+            // The batch's pages were rolled back together on the duplicate, then resolved one by one through the index.
+            try (Transaction tx = db.beginTx()) {
+                assertEquals(2, count(db, PAGE));
+                assertCached(db, pages, "/a", "/elsewhere");
+                tx.success();
+            }
+            assertEquals(0, read.getFailed());
+            assertTrue(pages.filter().mightContain("/elsewhere"));
+        } finally {
+            db.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldReleaseEveryCommittedWriteWhenACallbackFails() throws Exception {
+        GraphDatabaseService db = databaseWithConstraints();
+        try {
+            BatchWriterService writer = writerFor(db);
+            BatchWriteHandler read = new BatchWriteHandler("read", new NodeKey(READER, "name", 100), new NodeKey(PAGE, "url", 100)) {
+                @Override
+                public void apply(Node reader, Node page, long[] times) {
+                    reader.createRelationshipTo(page, READ);
+                }
+
+                @Override
+                public void committed(String reader, String page, long readerNodeId, long pageNodeId, long[] times) {
+                    throw new IllegalStateException("callback failed");
+                }
+            };
+            SettableFuture<Void> first = SettableFuture.create();
+            SettableFuture<Void> second = SettableFuture.create();
+            assertTrue(writer.queue.offer(read, "alice", "/a", VisitCommand.NO_ID, VisitCommand.NO_ID, 60_000L, VisitJournal.NO_OFFSET, first));
+            assertTrue(writer.queue.offer(read, "bob", "/a", VisitCommand.NO_ID, VisitCommand.NO_ID, 60_000L, VisitJournal.NO_OFFSET, second));
+
+            writer.runOneIteration();
+
+            assertTrue(first.isDone() && second.isDone());
+            first.get();
+            second.get();
+            assertEquals(0, read.getFailed());
+        } finally {
+            db.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldKeepRunningAfterAnUnexpectedError() throws Exception {
+        // Without a database every write fails outside of any transaction.
+        BatchWriterService writer = new BatchWriterService(-1);
+        SettableFuture<Void> committed = SettableFuture.create();
+        assertTrue(writer.queue.offer(BatchWriteHandlers.VISITED, "1234", "http://www.neo4j.org", VisitCommand.NO_ID, VisitCommand.NO_ID, 60_000L, VisitJournal.NO_OFFSET, committed));
+
+        writer.runOneIteration();
+
+        assertFailed(committed);
+        assertTrue(writer.queue.isEmpty());
+    }
+
+    @Test
+    public void shouldNotDropRequeuedWritesOnAFullQueue() throws Exception {
+        BatchWriterService writer = new BatchWriterService(-1);
+        while (writer.queue.offer(BatchWriteHandlers.VISITED, "1234", "http://www.neo4j.org", VisitCommand.NO_ID, VisitCommand.NO_ID, 60_000L, VisitJournal.NO_OFFSET)) {
+        }
+
+        // Whatever bws.queue.backpressure says, a replayed dead letter is kept rather than dropped or waited on.
+        assertFalse(writer.requeue(BatchWriteHandlers.VISITED, "1234", "http://www.neo4j.com", 60_000L));
+        assertEquals(0, writer.getDroppedWrites());
+    }
+
+    private static final Label READER = DynamicLabel.label("Reader");
+    private static final Label PAGE = DynamicLabel.label("Page");
+    private static final RelationshipType READ = DynamicRelationshipType.withName("READ");
+
+    private static GraphDatabaseService databaseWithConstraints() {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        try (Transaction tx = db.beginTx()) {
+            db.schema().constraintFor(READER).assertPropertyIsUnique("name").create();
+            db.schema().constraintFor(PAGE).assertPropertyIsUnique("url").create();
+            tx.success();
+        }
+        return db;
+    }
+
+    private static BatchWriterService writerFor(GraphDatabaseService db) {
+        BatchWriterService writer = new BatchWriterService(-1);
+        writer.SetGraphDatabase(db);
+        return writer;
+    }
+
+    private static BatchWriteHandler readHandler(NodeKey readers, NodeKey pages) {
+        return new BatchWriteHandler("read", readers, pages) {
+            @Override
+            public boolean coalesces() {
+                return false;
+            }
+
+            @Override
+            public void apply(Node reader, Node page, long[] times) {
+                reader.createRelationshipTo(page, READ);
+            }
+        };
+    }
+
+    private static int count(GraphDatabaseService db, Label label) {
+        int count = 0;
+        for (Node ignored : GlobalGraphOperations.at(db).getAllNodesWithLabel(label)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static void assertCached(GraphDatabaseService db, NodeKey nodeKey, String... keys) {
+        for (String key : keys) {
+            long nodeId = nodeKey.cache().getIfPresent(key);
+            assertEquals(key, db.getNodeById(nodeId).getProperty(nodeKey.property));
+        }
+    }
+
+    private static void assertFailed(SettableFuture<Void> committed) throws InterruptedException {
+        try {
+            committed.get();
+            fail("The write failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NotFoundException);
+        }
+    }
+
+    private static VisitCommand[] commands(VisitCommand... commands) {
+        return commands;
+    }
+
+    private static VisitCommand command(String userId, String url, long userNodeId, long visitedAt) {
+        VisitCommand command = new VisitCommand();
+        command.set(userId, url, userNodeId, VisitCommand.NO_ID, visitedAt);
+        return command;
+    }
+}
@@ -0,0 +1,38 @@
+package com.neo4j.example.bws;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void shouldReportPercentilesWithinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for (long i = 1; i <= 10_000; i++) {
+            histogram.record(i * 1_000);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(10_000, snapshot.getCount());
+        assertWithin(5_000_000, snapshot.getValueAtPercentile(50));
+        assertWithin(9_900_000, snapshot.getValueAtPercentile(99));
+        assertWithin(10_000_000, snapshot.getMax());
+    }
+
+    @Test
+    public void shouldMapEveryValueToABucketThatHoldsIt() {
+        long[] values = {0, 1, 15, 16, 17, 31, 32, 1_000, 123_456_789, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = Histogram.index(value);
+            assertTrue(index < Histogram.BUCKETS);
+            assertTrue(Histogram.highestValue(index) >= value);
+            assertTrue(index == 0 || Histogram.highestValue(index - 1) < value);
+        }
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 16);
+    }
+}
@@ -0,0 +1,83 @@
+package com.neo4j.example.bws;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IdentityCacheSnapshotsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldRestoreGuavaEntriesAsUnconfirmed() throws Exception {
+        GuavaIdentityCache cache = new GuavaIdentityCache(1_000);
+        cache.put("1234", 42L);
+        cache.put("http://www.neo4j.org", 0L);
+        File file = new File(folder.getRoot(), "users.snapshot");
+
+        assertTrue(IdentityCacheSnapshots.save(cache, file));
+        GuavaIdentityCache restored = new GuavaIdentityCache(1_000);
+        assertTrue(IdentityCacheSnapshots.load(restored, file));
+
+        assertEquals(2, restored.size());
+        assertEquals(42L | IdentityCache.UNCONFIRMED, restored.getIfPresent("1234"));
+        assertEquals(IdentityCache.UNCONFIRMED, restored.getIfPresent("http://www.neo4j.org"));
+    }
+
+    @Test
+    public void shouldRestoreOffHeapEntries() throws Exception {
+        OffHeapIdentityCache cache = new OffHeapIdentityCache(1_000);
+        for (int i = 0; i < 200; i++) {
+            cache.put(String.valueOf(i), i);
+        }
+        File file = new File(folder.getRoot(), "sites.snapshot");
+
+        assertTrue(IdentityCacheSnapshots.save(cache, file));
+        OffHeapIdentityCache restored = new OffHeapIdentityCache(1_000);
+        assertTrue(IdentityCacheSnapshots.load(restored, file));
+
+        assertEquals(cache.size(), restored.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(cache.getIfPresent(String.valueOf(i)), restored.getIfPresent(String.valueOf(i)));
+        }
+    }
+
+    @Test
+    public void shouldDropSnapshotsWithLengthsPastTheirEnd() throws Exception {
+        File file = new File(folder.getRoot(), "users.snapshot");
+        // A valid entry followed by one that claims a 2GB key.
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x42575343);
+            out.writeUTF(GuavaIdentityCache.class.getName());
+            out.writeInt(4);
+            out.write("1234".getBytes("UTF-8"));
+            out.writeLong(42L);
+            out.writeInt(Integer.MAX_VALUE);
+        }
+
+        GuavaIdentityCache restored = new GuavaIdentityCache(1_000);
+        assertFalse(IdentityCacheSnapshots.load(restored, file));
+        assertEquals(0, restored.size());
+    }
+
+    @Test
+    public void shouldIgnoreSnapshotsOfAnotherImplementation() throws Exception {
+        GuavaIdentityCache cache = new GuavaIdentityCache(1_000);
+        cache.put("1234", 42L);
+        File file = new File(folder.getRoot(), "users.snapshot");
+        assertTrue(IdentityCacheSnapshots.save(cache, file));
+
+        OffHeapIdentityCache restored = new OffHeapIdentityCache(1_000);
+        assertFalse(IdentityCacheSnapshots.load(restored, file));
+        assertEquals(0, restored.size());
+    }
+}
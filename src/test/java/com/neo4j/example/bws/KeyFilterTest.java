@@ -0,0 +1,66 @@
+package com.neo4j.example.bws;
+
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyFilterTest {
+
+    @Test
+    public void shouldNotRuleOutKeysUntilComplete() {
+        KeyFilter filter = new KeyFilter("user", 1_000);
+        assertTrue(filter.mightContain("1234"));
+
+        filter.put("1234");
+        filter.complete();
+        assertTrue(filter.mightContain("1234"));
+        assertFalse(filter.mightContain("5678"));
+    }
+
+    @Test
+    public void shouldOnlyRuleOutKeysWithAUniquenessConstraint() {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        try {
+            KeyFilter filter = new KeyFilter("user", 1_000);
+            filter.complete(db, Labels.User, "userId");
+            assertTrue(filter.mightContain("5678"));
+
+            try (Transaction tx = db.beginTx()) {
+                db.schema().constraintFor(Labels.User).assertPropertyIsUnique("userId").create();
+                tx.success();
+            }
+            filter.complete(db, Labels.User, "userId");
+            assertFalse(filter.mightContain("5678"));
+        } finally {
+            db.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldKeepFalsePositivesLowWhileGrowing() {
+        KeyFilter filter = new KeyFilter("site", 1_024);
+        filter.complete();
+        for (int i = 0; i < 50_000; i++) {
+            filter.put("http://" + i + ".neo4j.com");
+        }
+        for (int i = 0; i < 50_000; i++) {
+            assertTrue(filter.mightContain("http://" + i + ".neo4j.com"));
+        }
+
+        int falsePositives = 0;
+        for (int i = 50_000; i < 150_000; i++) {
+            if (filter.mightContain("http://" + i + ".neo4j.com")) {
+                falsePositives++;
+            }
+        }
+        assertTrue((int) filter.status().get("layers") > 1);
+        // Each layer is filled up to its capacity, so the rate approaches twice the configured 1% from below.
+        assertTrue("False positives: " + falsePositives, falsePositives < 2_500);
+        assertEquals(50_000L, (long) filter.status().get("keys"), 500.0);
+    }
+}
@@ -1,19 +1,33 @@
 package com.neo4j.example.bws;
 
+import com.google.common.util.concurrent.SettableFuture;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class NeoServiceTest {
 
@@ -29,6 +43,9 @@ public class NeoServiceTest {
         // For testing purposes we have to invalidate the caches otherwise it leaves garbage node ids around.
         service.userCache.invalidateAll();
         service.siteCache.invalidateAll();
+        VisitedRelationships.cache.invalidateAll();
+        RecentVisits.invalidateAll();
+        EncodedUrls.invalidateAll();
     }
 
     @After
@@ -55,7 +72,21 @@ public class NeoServiceTest {
     }
 
     @Test
-    public void shouldCreateViewed() throws IOException {
+    public void shouldCacheRecentUsersWhenWarmingUp() throws IOException, InterruptedException {
+        service.userVisited(objectMapper.writeValueAsString(request), "1234", graphDatabaseService);
+        service.userCache.invalidateAll();
+        service.siteCache.invalidateAll();
+
+        assertEquals("Warmed up and ready to go!", service.warmUp(graphDatabaseService));
+        HashMap status = objectMapper.readValue((String) service.warmUpStatus().getEntity(), HashMap.class);
+
+        assertEquals("DONE", status.get("state"));
+        assertTrue(service.userCache.getIfPresent("1234") != IdentityCache.NO_ID);
+        assertTrue(service.siteCache.getIfPresent("http://www.neo4j.org") != IdentityCache.NO_ID);
+    }
+
+    @Test
+    public void shouldCreateViewed() throws IOException, InterruptedException {
         Response response = service.userVisited(objectMapper.writeValueAsString(request), "1234", graphDatabaseService);
         int code = response.getStatus();
 
@@ -63,7 +94,7 @@ public class NeoServiceTest {
     }
 
     @Test
-    public void shouldCreateViewedTwice() throws IOException {
+    public void shouldCreateViewedTwice() throws IOException, InterruptedException {
         service.userVisited(objectMapper.writeValueAsString(request), "1234", graphDatabaseService);
         Response response = service.userVisited(objectMapper.writeValueAsString(request), "1234", graphDatabaseService);
         int code = response.getStatus();
@@ -73,7 +104,7 @@ public class NeoServiceTest {
 
 
     @Test
-    public void shouldNotCreateViewedBadInput() throws IOException {
+    public void shouldNotCreateViewedBadInput() throws IOException, InterruptedException {
         Response response = service.userVisited("343:asdf3:#43", "1234", graphDatabaseService);
         int code = response.getStatus();
         String actual = objectMapper.readValue((String) response.getEntity(), String.class);
@@ -83,7 +114,7 @@ public class NeoServiceTest {
     }
 
     @Test
-    public void shouldNotCreateViewedNoUrl() throws IOException {
+    public void shouldNotCreateViewedNoUrl() throws IOException, InterruptedException {
         Response response = service.userVisited("{\"lru\": \"http://neo4j.com\"}", "1234", graphDatabaseService);
         int code = response.getStatus();
         String actual = objectMapper.readValue((String) response.getEntity(), String.class);
@@ -93,16 +124,131 @@ public class NeoServiceTest {
     }
 
     @Test
-    public void shouldGetUserViewed() throws IOException {
+    public void shouldGetUserViewed() throws IOException, InterruptedException {
         service.userVisited(objectMapper.writeValueAsString(request), "1234", graphDatabaseService);
-        Response response = service.getVisited("1234", 1, graphDatabaseService);
+        Response response = service.getVisited("1234", 1, 0, 0, graphDatabaseService);
         int code = response.getStatus();
-        ArrayList actual = objectMapper.readValue((String) response.getEntity(), ArrayList.class);
+        ArrayList actual = objectMapper.readValue(streamed(response), ArrayList.class);
 
         assertEquals(200, code);
         assertEquals(request.get("url"), actual.get(0));
     }
 
+    @Test
+    public void shouldEscapeUserViewedUrls() throws IOException, InterruptedException {
+        String url = "http://neo4j.com/\"quoted\"/caf\u00e9/\u2603";
+        HashMap<String, String> visit = new HashMap<>();
+        visit.put("url", url);
+        service.userVisited(objectMapper.writeValueAsString(visit), "1234", graphDatabaseService);
+        service.userVisited(objectMapper.writeValueAsString(request), "1234", graphDatabaseService);
+        // Read twice, the second time the encoded urls come from the cache.
+        for (int i = 0; i < 2; i++) {
+            RecentVisits.invalidateAll();
+            ArrayList actual = objectMapper.readValue(streamed(service.getVisited("1234", 1, 0, 0, graphDatabaseService)), ArrayList.class);
+
+            assertEquals(2, actual.size());
+            assertTrue(actual.contains(url));
+            assertTrue(actual.contains(request.get("url")));
+        }
+    }
+
+    @Test
+    public void shouldNotGetRolledBackViews() throws IOException, InterruptedException {
+        service.userVisited(objectMapper.writeValueAsString(request), "1234", graphDatabaseService);
+        service.getVisited("1234", 1, 0, 0, graphDatabaseService);
+        try (Transaction tx = graphDatabaseService.beginTx()) {
+            Node user = graphDatabaseService.findNode(Labels.User, "userId", "1234");
+            Node site = graphDatabaseService.createNode(Labels.Site);
+            site.setProperty("url", "http://rolled.back");
+            NeoService.CreateVisitedRelationship(user, site);
+            tx.failure();
+        }
+
+        ArrayList actual = objectMapper.readValue(streamed(service.getVisited("1234", 1, 0, 0, graphDatabaseService)), ArrayList.class);
+
+        assertEquals(1, actual.size());
+        assertEquals(request.get("url"), actual.get(0));
+    }
+
+    @Test
+    public void shouldPageUserViewedMostRecentFirst() throws IOException, InterruptedException {
+        service.userVisited(objectMapper.writeValueAsString(request), "1234", graphDatabaseService);
+        service.getVisited("1234", 1, 0, 0, graphDatabaseService);
+        for (int i = 0; i < 5; i++) {
+            service.userVisited("{\"url\": \"http://" + i + ".neo4j.com\"}", "1234", graphDatabaseService);
+        }
+        // Every visit is in the same minute, so once the user is cached they are in the order they were written in.
+        Response response = service.getVisited("1234", 1, 1, 2, graphDatabaseService);
+        ArrayList actual = objectMapper.readValue(streamed(response), ArrayList.class);
+
+        assertEquals(2, actual.size());
+        assertEquals("http://3.neo4j.com", actual.get(0));
+        assertEquals("http://2.neo4j.com", actual.get(1));
+    }
+
+    @Test
+    public void shouldReportFailedWarmUpsAndRetryThem() {
+        Node user;
+        try (Transaction tx = graphDatabaseService.beginTx()) {
+            user = graphDatabaseService.createNode(Labels.User);
+            user.setProperty("userId", 1234L);
+            tx.success();
+        }
+
+        assertEquals("Warm up failed for 1 chunks, call it again to retry them", service.warmUp(graphDatabaseService));
+        assertEquals(WarmupJob.State.FAILED, WarmupJob.current().getState());
+
+        try (Transaction tx = graphDatabaseService.beginTx()) {
+            user.setProperty("userId", "1234");
+            tx.success();
+        }
+        assertEquals("Warmed up and ready to go!", service.warmUp(graphDatabaseService));
+    }
+
+    @Test
+    public void shouldCountSyncVisitsInTheTopSites() throws IOException, InterruptedException {
+        // Other tests' visits are counted too, so this site gets enough of them to make the top.
+        for (int i = 0; i < 500; i++) {
+            assertEquals(201, service.userVisited("{\"url\": \"http://sync.neo4j.com\"}", "1234", graphDatabaseService).getStatus());
+        }
+
+        ArrayList actual = objectMapper.readValue((String) service.topSites(1, 10).getEntity(), ArrayList.class);
+        boolean counted = false;
+        for (Object site : actual) {
+            counted |= "http://sync.neo4j.com".equals(((Map) site).get("url"));
+        }
+        assertTrue(counted);
+    }
+
+    @Test
+    public void shouldFindNodesTheFiltersMissed() throws IOException, InterruptedException {
+        // Nodes created behind the extension's back, say through Cypher, are not in the filters.
+        try (Transaction tx = graphDatabaseService.beginTx()) {
+            graphDatabaseService.createNode(Labels.User).setProperty("userId", "cypher");
+            graphDatabaseService.createNode(Labels.Site).setProperty("url", "http://cypher.neo4j.com");
+            tx.success();
+        }
+        NeoService.userFilter.complete();
+        NeoService.siteFilter.complete();
+
+        assertEquals(201, service.userVisited("{\"url\": \"http://cypher.neo4j.com\"}", "cypher", graphDatabaseService).getStatus());
+        assertEquals(201, service.asyncUserVisited("{\"url\": \"http://cypher.neo4j.com\"}", "1234", graphDatabaseService).getStatus());
+        boolean written = false;
+        for (int i = 0; i < 100 && !written; i++) {
+            Thread.sleep(100);
+            written = hasVisited("1234", "http://cypher.neo4j.com");
+        }
+
+        assertTrue(written);
+        assertTrue(hasVisited("cypher", "http://cypher.neo4j.com"));
+        try (Transaction tx = graphDatabaseService.beginTx()) {
+            assertEquals(1, count(graphDatabaseService.findNodesByLabelAndProperty(Labels.User, "userId", "cypher")));
+            assertEquals(1, count(graphDatabaseService.findNodesByLabelAndProperty(Labels.Site, "url", "http://cypher.neo4j.com")));
+            tx.success();
+        }
+        assertTrue(NeoService.userFilter.mightContain("cypher"));
+        assertTrue(NeoService.siteFilter.mightContain("http://cypher.neo4j.com"));
+    }
 
     @Test
     public void shouldCreateViewedAsync() throws IOException, InterruptedException {
@@ -121,10 +267,182 @@ public class NeoServiceTest {
     }
 
 
+    @Test
+    public void shouldMoveOnlyTheFailingWriteToTheDeadLetters() throws IOException, InterruptedException {
+        int deadLetters = DeadLetterQueue.INSTANCE.size();
+        long minute = NeoService.currentMinute();
+        BatchWriterPool.INSTANCE.enqueue("1234", "http://www.neo4j.org", minute);
+        // A user node id that doesn't exist fails the transaction it is written in.
+        BatchWriterPool.INSTANCE.enqueue("1234", "http://www.neo4j.com", 999_999L, VisitCommand.NO_ID, minute);
+        BatchWriterPool.INSTANCE.enqueue("1234", "http://www.neo4j.net", minute);
+        // Writes left queued by other tests can end up in the dead letters too, so look for this one.
+        boolean deadLettered = false;
+        for (int i = 0; i < 100 && !deadLettered; i++) {
+            Thread.sleep(100);
+            for (Object deadLetter : DeadLetterQueue.INSTANCE.list(deadLetters, 0)) {
+                deadLettered |= "http://www.neo4j.com".equals(((Map) deadLetter).get("url"));
+            }
+        }
+
+        assertTrue(deadLettered);
+        ArrayList actual = objectMapper.readValue(streamed(service.getVisited("1234", 1, 0, 0, graphDatabaseService)), ArrayList.class);
+        assertEquals(2, actual.size());
+        assertTrue(actual.contains("http://www.neo4j.org"));
+        assertTrue(actual.contains("http://www.neo4j.net"));
+    }
+
+    @Test
+    public void shouldAnswerGroupCommitsOnceTheVisitIsWritten() throws IOException, InterruptedException {
+        Response response = service.groupCommit("1234", "http://www.neo4j.org", 10_000L);
+
+        assertEquals(201, response.getStatus());
+        assertTrue(hasVisited("1234", "http://www.neo4j.org"));
+
+        // Once the user's visits are cached, the next visit is read back as soon as it is answered.
+        service.getVisited("1234", 1, 0, 0, graphDatabaseService);
+        assertEquals(201, service.groupCommit("1234", "http://www.neo4j.com", 10_000L).getStatus());
+        ArrayList actual = objectMapper.readValue(streamed(service.getVisited("1234", 1, 0, 1, graphDatabaseService)), ArrayList.class);
+        assertEquals("http://www.neo4j.com", actual.get(0));
+    }
+
+    @Test
+    public void shouldAcceptGroupCommitsThatTimeOut() throws IOException, InterruptedException {
+        long timeouts = BatchWriterMetrics.INSTANCE.groupCommitTimeouts.get();
+        Response response = service.groupCommit("1234", "http://www.neo4j.org", 0L);
+
+        assertEquals(202, response.getStatus());
+        assertEquals(timeouts + 1, BatchWriterMetrics.INSTANCE.groupCommitTimeouts.get());
+        // The visit is still queued and written later.
+        boolean written = false;
+        for (int i = 0; i < 100 && !written; i++) {
+            Thread.sleep(100);
+            written = hasVisited("1234", "http://www.neo4j.org");
+        }
+        assertTrue(written);
+    }
+
+    @Test
+    public void shouldFailGroupCommitsOfFailingWrites() throws IOException, InterruptedException {
+        SettableFuture<Void> committed = SettableFuture.create();
+        // A user node id that doesn't exist fails the transaction it is written in.
+        BatchWriterPool.INSTANCE.writerFor("1234").enqueue(BatchWriteHandlers.VISITED, "1234", "http://www.neo4j.com",
+                999_999L, VisitCommand.NO_ID, NeoService.currentMinute(), committed);
+        Response response = service.awaitCommit(committed, 10_000L);
+
+        assertEquals(500, response.getStatus());
+        assertTrue(((String) response.getEntity()).startsWith("\"Error writing visit "));
+    }
+
+    @Test
+    public void shouldKeepDeadLettersOfUnregisteredTypes() throws IOException, InterruptedException {
+        // Dead letters of other tests are set aside, replaying them would write to the next test's database.
+        ArrayList<DeadLetterQueue.DeadLetter> others = new ArrayList<>();
+        DeadLetterQueue.DeadLetter other;
+        while ((other = DeadLetterQueue.INSTANCE.poll()) != null) {
+            others.add(other);
+        }
+        DeadLetterQueue.INSTANCE.add(new DeadLetterQueue.DeadLetter("unregistered", "1234", "5678",
+                new long[]{NeoService.currentMinute()}, "error", System.currentTimeMillis()));
+
+        HashMap actual = objectMapper.readValue((String) service.replayDeadLetters().getEntity(), HashMap.class);
+
+        assertEquals(0, actual.get("replayed"));
+        assertEquals(1, actual.get("skipped"));
+        assertTrue(((List) actual.get("errors")).contains("Unknown write type unregistered"));
+        assertEquals("unregistered", DeadLetterQueue.INSTANCE.poll().type);
+        for (DeadLetterQueue.DeadLetter letter : others) {
+            DeadLetterQueue.INSTANCE.add(letter);
+        }
+    }
+
+    @Test
+    public void shouldBatchWritesOfRegisteredTypes() throws IOException, InterruptedException {
+        final RelationshipType liked = DynamicRelationshipType.withName("LIKED");
+        if (BatchWriteHandlers.forType("liked") == null) {
+            BatchWriteHandlers.register(new BatchWriteHandler("liked", NodeKey.USER, NodeKey.SITE) {
+                @Override
+                public void apply(Node user, Node site, long[] times) {
+                    user.createRelationshipTo(site, liked).setProperty("times", times);
+                }
+            });
+        }
+        assertEquals(404, service.asyncWrite("{\"url\": \"http://www.neo4j.org\"}", "1234", "disliked").getStatus());
+        assertEquals(400, service.asyncWrite("{\"lru\": \"http://www.neo4j.org\"}", "1234", "liked").getStatus());
+        assertEquals(201, service.asyncWrite("{\"url\": \"http://www.neo4j.org\"}", "1234", "liked").getStatus());
+
+        boolean written = false;
+        for (int i = 0; i < 100 && !written; i++) {
+            Thread.sleep(100);
+            try (Transaction tx = graphDatabaseService.beginTx()) {
+                for (Node user : graphDatabaseService.findNodesByLabelAndProperty(Labels.User, "userId", "1234")) {
+                    written = user.hasRelationship(liked, Direction.OUTGOING);
+                }
+                tx.success();
+            }
+        }
+        assertTrue(written);
+    }
+
+    @Test
+    public void shouldCountAcceptedAndRejectedVisits() throws IOException, InterruptedException {
+        String body = "{\"userId\": \"1234\", \"url\": \"http://www.neo4j.org\", \"ts\": 1420070400000}\n" +
+                "{\"userId\": \"5678\", \"url\": \"http://www.neo4j.org\"}\n" +
+                "\n" +
+                "{\"userId\": \"5678\"}\n" +
+                "343:asdf3:#43\n";
+        Response response = service.asyncVisits(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), graphDatabaseService);
+        HashMap actual = objectMapper.readValue((String) response.getEntity(), HashMap.class);
+
+        assertEquals(200, response.getStatus());
+        assertEquals(2, actual.get("accepted"));
+        assertEquals(2, actual.get("rejected"));
+        assertEquals("Line 4: Missing URL Parameter", ((List) actual.get("errors")).get(0));
+    }
+
+    @Test
+    public void shouldRejectVisitsOutsideTheTimestampWindow() throws IOException, InterruptedException {
+        long future = System.currentTimeMillis() + 24 * 60 * 60 * 1000L;
+        String body = "{\"userId\": \"1234\", \"url\": \"http://www.neo4j.org\", \"ts\": -60000}\n" +
+                "{\"userId\": \"1234\", \"url\": \"http://www.neo4j.org\", \"ts\": " + future + "}\n";
+        Response response = service.asyncVisits(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), graphDatabaseService);
+        HashMap actual = objectMapper.readValue((String) response.getEntity(), HashMap.class);
+
+        assertEquals(0, actual.get("accepted"));
+        assertEquals(2, actual.get("rejected"));
+        assertEquals("Line 1: ts out of range -60000", ((List) actual.get("errors")).get(0));
+        assertEquals(400, service.asyncWrite("{\"url\": \"http://www.neo4j.org\", \"ts\": " + future + "}", "1234", "visited").getStatus());
+    }
+
     public static final HashMap<String, Object> request =
             new HashMap<String, Object>(){{
                 put("url", "http://www.neo4j.org");
             }};
 
+    private static int count(Iterable<Node> nodes) {
+        int count = 0;
+        for (Node ignored : nodes) {
+            count++;
+        }
+        return count;
+    }
+
+    private static boolean hasVisited(String userId, String url) {
+        try (Transaction tx = graphDatabaseService.beginTx()) {
+            for (Node user : graphDatabaseService.findNodesByLabelAndProperty(Labels.User, "userId", userId)) {
+                for (Relationship visited : user.getRelationships(Direction.OUTGOING, Relationships.VISITED)) {
+                    if (url.equals(visited.getEndNode().getProperty("url"))) {
+                        return true;
+                    }
+                }
+            }
+            tx.success();
+        }
+        return false;
+    }
 
+    private static String streamed(Response response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
 }
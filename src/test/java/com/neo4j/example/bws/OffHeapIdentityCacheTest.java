@@ -0,0 +1,55 @@
+package com.neo4j.example.bws;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapIdentityCacheTest {
+
+    @Test
+    public void shouldCacheNodeIds() {
+        OffHeapIdentityCache cache = new OffHeapIdentityCache(1_000);
+        cache.put("1234", 42L);
+        cache.put("http://www.neo4j.org", 0L);
+
+        assertEquals(42L, cache.getIfPresent("1234"));
+        assertEquals(0L, cache.getIfPresent("http://www.neo4j.org"));
+        assertEquals(IdentityCache.NO_ID, cache.getIfPresent("5678"));
+        assertEquals(2, cache.size());
+
+        cache.invalidate("1234");
+        assertEquals(IdentityCache.NO_ID, cache.getIfPresent("1234"));
+    }
+
+    @Test
+    public void shouldEvictWithinCapacity() {
+        OffHeapIdentityCache cache = new OffHeapIdentityCache(64);
+        for (int i = 0; i < 10_000; i++) {
+            cache.put(String.valueOf(i), i);
+        }
+
+        assertTrue(cache.size() <= 64);
+        assertTrue(cache.stats().evictionCount() > 0);
+        for (int i = 0; i < 10_000; i++) {
+            long nodeId = cache.getIfPresent(String.valueOf(i));
+            assertTrue(nodeId == IdentityCache.NO_ID || nodeId == i);
+        }
+    }
+
+    @Test
+    public void shouldGiveReadEntriesASecondChance() {
+        // A single set of eight ways.
+        OffHeapIdentityCache cache = new OffHeapIdentityCache(8);
+        for (int i = 0; i < 8; i++) {
+            cache.put(String.valueOf(i), i);
+        }
+        cache.getIfPresent("0");
+
+        cache.put("8", 8L);
+
+        assertEquals(0L, cache.getIfPresent("0"));
+        assertEquals(8L, cache.getIfPresent("8"));
+        assertEquals(8, cache.size());
+    }
+}
@@ -0,0 +1,48 @@
+package com.neo4j.example.bws;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class VisitHistoryTest {
+
+    private static final long MINUTE = 60_000L;
+    private static final long NOW = 1_600_000_000_000L / MINUTE * MINUTE;
+
+    @Test
+    public void shouldRoundTripVisits() {
+        long[] visits = {NOW, NOW + MINUTE, NOW + 90 * MINUTE, NOW + 1_000_000 * MINUTE};
+        byte[] encoded = VisitHistory.encode(visits);
+
+        assertArrayEquals(visits, VisitHistory.decode(encoded));
+        // The first visit costs 4 bytes, each later one only as many as its distance from the one before it.
+        assertEquals(4 + 1 + 1 + 3, encoded.length);
+    }
+
+    @Test
+    public void shouldRoundTripVisitsBeforeTheEpoch() {
+        long[] visits = {-2 * MINUTE, -MINUTE};
+
+        assertArrayEquals(visits, VisitHistory.decode(VisitHistory.encode(visits)));
+    }
+
+    @Test
+    public void shouldMergeWithoutDuplicates() {
+        long[] merged = VisitHistory.merge(new long[]{NOW, NOW + 2 * MINUTE}, new long[]{NOW + MINUTE, NOW + 2 * MINUTE});
+
+        assertArrayEquals(new long[]{NOW, NOW + MINUTE, NOW + 2 * MINUTE}, merged);
+    }
+
+    @Test
+    public void shouldKeepOneVisitPerDayBeforeTheMinuteRetention() {
+        long day = NOW - NOW % VisitHistory.DAY;
+        long[] visits = {day - 40 * VisitHistory.DAY, day - 2 * VisitHistory.DAY + MINUTE, day - 2 * VisitHistory.DAY + 2 * MINUTE,
+                day - VisitHistory.DAY + MINUTE, NOW};
+
+        long[] retained = VisitHistory.retain(visits, day - VisitHistory.DAY, day - 30 * VisitHistory.DAY);
+
+        assertArrayEquals(new long[]{day - 2 * VisitHistory.DAY, day - VisitHistory.DAY + MINUTE, NOW}, retained);
+        assertEquals(0, VisitHistory.retain(visits, NOW, NOW + MINUTE).length);
+    }
+}
@@ -0,0 +1,102 @@
+package com.neo4j.example.bws;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.Node;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class VisitJournalTest {
+
+    private static final int SEGMENT_SIZE = 4_096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldReplayVisitsAfterTheCheckpoint() throws Exception {
+        File directory = folder.newFolder("journal");
+        VisitJournal journal = new VisitJournal(directory, SEGMENT_SIZE);
+        long checkpoint = 0;
+        for (int i = 0; i < 1_000; i++) {
+            long offset = append(journal, "user" + i, i * 60_000L);
+            if (i == 699) {
+                checkpoint = offset;
+            }
+        }
+        journal.checkpoint(checkpoint);
+
+        VisitJournal reopened = new VisitJournal(directory, SEGMENT_SIZE);
+        assertTrue(reopened.isReplaying());
+        VisitCommand[] commands = new VisitCommand[1_000];
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = new VisitCommand();
+        }
+        int replayed = reopened.replay(commands, commands.length);
+
+        assertEquals(300, replayed);
+        assertEquals("user700", commands[0].userId);
+        assertEquals("http://www.neo4j.org", commands[0].url);
+        assertEquals(700 * 60_000L, commands[0].visitedAt);
+        assertEquals("user999", commands[299].userId);
+        assertEquals(0, reopened.replay(commands, commands.length));
+        assertFalse(reopened.isReplaying());
+    }
+
+    @Test
+    public void shouldRecycleCheckpointedSegments() throws Exception {
+        File directory = folder.newFolder("journal");
+        VisitJournal journal = new VisitJournal(directory, SEGMENT_SIZE);
+        for (int i = 0; i < 10_000; i++) {
+            journal.checkpoint(append(journal, "user" + i, i * 60_000L));
+        }
+
+        // One segment being written to and at most one that was just checkpointed, plus the checkpoint file.
+        assertTrue(directory.list().length <= 3);
+        assertFalse(new VisitJournal(directory, SEGMENT_SIZE).isReplaying());
+    }
+
+    @Test
+    public void shouldReplayTheTypeOfWrites() throws Exception {
+        BatchWriteHandler followed = new BatchWriteHandler("journaled-followed", NodeKey.USER, NodeKey.USER) {
+            @Override
+            public boolean replayable() {
+                return true;
+            }
+
+            @Override
+            public void apply(Node from, Node to, long[] times) {
+            }
+        };
+        BatchWriteHandlers.register(followed);
+        File directory = folder.newFolder("journal");
+        VisitJournal journal = new VisitJournal(directory, SEGMENT_SIZE);
+        append(journal, "1234", 60_000L);
+        synchronized (journal) {
+            journal.reserve(followed, "1234", "5678", 120_000L);
+            journal.write();
+        }
+
+        VisitCommand[] commands = {new VisitCommand(), new VisitCommand()};
+        assertEquals(2, new VisitJournal(directory, SEGMENT_SIZE).replay(commands, commands.length));
+        assertSame(BatchWriteHandlers.VISITED, commands[0].handler);
+        assertSame(followed, commands[1].handler);
+        assertEquals("5678", commands[1].url);
+        assertEquals(120_000L, commands[1].visitedAt);
+    }
+
+    private static long append(VisitJournal journal, String userId, long visitedAt) throws IOException {
+        synchronized (journal) {
+            long offset = journal.reserve(userId, "http://www.neo4j.org", visitedAt);
+            journal.write();
+            return offset;
+        }
+    }
+}
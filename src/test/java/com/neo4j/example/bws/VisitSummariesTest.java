@@ -0,0 +1,57 @@
+package com.neo4j.example.bws;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VisitSummariesTest {
+
+    private static final long NOW = 1_420_070_400_000L;
+    private static final long MINUTE = 60_000L;
+
+    @Test
+    public void shouldRankTheBusiestSitesInTheWindow() {
+        VisitSummaries summaries = new VisitSummaries(60, 10);
+        for (int user = 0; user < 1_000; user++) {
+            // Site i is visited by every user divisible by i + 1, plus a long tail of one-off sites.
+            for (int site = 0; site < 5; site++) {
+                if (user % (site + 1) == 0) {
+                    summaries.record("user" + user, "http://" + site + ".neo4j.com", NOW - MINUTE, NOW);
+                }
+            }
+            summaries.record("user" + user, "http://tail" + user + ".neo4j.com", NOW, NOW);
+        }
+        // Outside of a 2 minute window.
+        for (int user = 0; user < 5_000; user++) {
+            summaries.record("old" + user, "http://old.neo4j.com", NOW - 2 * MINUTE, NOW);
+        }
+
+        List<Map<String, Object>> top = summaries.topSites(2, 3, NOW);
+
+        assertEquals(3, top.size());
+        assertEquals("http://0.neo4j.com", top.get(0).get("url"));
+        assertEquals(1_000L, top.get(0).get("visits"));
+        assertEquals("http://1.neo4j.com", top.get(1).get("url"));
+        assertEquals("http://2.neo4j.com", top.get(2).get("url"));
+        assertEquals("http://old.neo4j.com", summaries.topSites(3, 1, NOW).get(0).get("url"));
+    }
+
+    @Test
+    public void shouldEstimateActiveUsers() {
+        VisitSummaries summaries = new VisitSummaries(60, 10);
+        for (int user = 0; user < 100_000; user++) {
+            summaries.record("user" + user, "http://www.neo4j.org", NOW - (user % 10) * MINUTE, NOW);
+        }
+
+        long lastTen = summaries.activeUsers(10, NOW);
+        long lastOne = summaries.activeUsers(1, NOW);
+
+        assertTrue("Estimated " + lastTen, Math.abs(lastTen - 100_000) < 5_000);
+        assertTrue("Estimated " + lastOne, Math.abs(lastOne - 10_000) < 500);
+        assertEquals(0, summaries.activeUsers(10, NOW + 60 * MINUTE));
+    }
+}
@@ -0,0 +1,133 @@
+package com.neo4j.example.bws;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class VisitedRelationshipsTest {
+
+    private GraphDatabaseService db;
+
+    @Before
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        VisitedRelationships.cache.invalidateAll();
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldDropCachedIdsOfDeletedRelationships() {
+        Node user;
+        Node site;
+        long hash;
+        try (Transaction tx = db.beginTx()) {
+            user = db.createNode(Labels.User);
+            site = db.createNode(Labels.Site);
+            Relationship visited = VisitedRelationships.getOrCreate(user, site);
+            hash = OffHeapIdentityCache.hash(user.getId(), site.getId());
+            assertEquals(visited.getId(), VisitedRelationships.cache.getIfPresent(hash));
+            tx.success();
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            VisitedRelationships.find(user, site).delete();
+            tx.success();
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            assertNull(VisitedRelationships.find(user, site));
+            assertEquals(IdentityCache.NO_ID, VisitedRelationships.cache.getIfPresent(hash));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldNotTrustCachedIdsOfOtherRelationships() {
+        try (Transaction tx = db.beginTx()) {
+            Node user = db.createNode(Labels.User);
+            Node site = db.createNode(Labels.Site);
+            Relationship other = db.createNode(Labels.User).createRelationshipTo(site, Relationships.VISITED);
+            Relationship visited = user.createRelationshipTo(site, Relationships.VISITED);
+            long hash = OffHeapIdentityCache.hash(user.getId(), site.getId());
+            VisitedRelationships.cache.put(hash, other.getId());
+
+            assertEquals(visited, VisitedRelationships.find(user, site));
+            assertEquals(visited.getId(), VisitedRelationships.cache.getIfPresent(hash));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldWalkFromTheLowerDegreeEndpoint() {
+        try (Transaction tx = db.beginTx()) {
+            Node user = db.createNode(Labels.User);
+            Node site = db.createNode(Labels.Site);
+            for (int i = 0; i < 100; i++) {
+                db.createNode(Labels.User).createRelationshipTo(site, Relationships.VISITED);
+            }
+            Relationship visited = user.createRelationshipTo(site, Relationships.VISITED);
+            for (int i = 0; i < 100; i++) {
+                db.createNode(Labels.User).createRelationshipTo(site, Relationships.VISITED);
+            }
+
+            // The popular site's chain must not be walked when the user has a single visit.
+            assertEquals(visited, VisitedRelationships.find(user, withoutRelationshipWalks(site)));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldWalkFromTheSiteForPowerUsers() {
+        try (Transaction tx = db.beginTx()) {
+            Node user = db.createNode(Labels.User);
+            Node site = db.createNode(Labels.Site);
+            for (int i = 0; i < 100; i++) {
+                user.createRelationshipTo(db.createNode(Labels.Site), Relationships.VISITED);
+            }
+            Relationship visited = user.createRelationshipTo(site, Relationships.VISITED);
+
+            assertEquals(visited, VisitedRelationships.find(withoutRelationshipWalks(user), site));
+            tx.success();
+        }
+    }
+
+    /**
+     * Wraps the node so that walking its relationships fails the test, while degrees and identity still work.
+     */
+    private static Node withoutRelationshipWalks(final Node node) {
+        return (Node) Proxy.newProxyInstance(Node.class.getClassLoader(), new Class<?>[]{Node.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("getRelationships")) {
+                            throw new AssertionError("Walked the relationships of the higher degree node " + node);
+                        }
+                        if (method.getName().equals("equals")) {
+                            return args[0] instanceof Node && ((Node) args[0]).getId() == node.getId();
+                        }
+                        try {
+                            return method.invoke(node, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+}